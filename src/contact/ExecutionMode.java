@@ -0,0 +1,95 @@
+package contact;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The kind of threads that handle requests and run blocking DAO work.
+ * It is set by the system property <tt>contact.executionMode</tt>:
+ * <ul>
+ * <li><tt>platform</tt> (default) - a pool of ordinary threads</li>
+ * <li><tt>virtual</tt> - a new virtual thread for each request or task,
+ *     so a request blocked on the database holds no OS thread</li>
+ * </ul>
+ * Virtual threads need Java 21 or later.  They are found by reflection,
+ * so the code still builds and runs on Java 8; on an older JVM the
+ * virtual mode falls back to platform threads with a warning.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public enum ExecutionMode {
+	PLATFORM, VIRTUAL;
+
+	/** system property with the execution mode. */
+	public static final String PROPERTY = "contact.executionMode";
+	private static final Logger logger = Logger.getLogger(ExecutionMode.class.getName());
+	/** the mode in use, decided on first use. */
+	private static ExecutionMode current;
+
+	/**
+	 * Get the execution mode set by the system property.
+	 * @return VIRTUAL if it was asked for and the JVM has virtual threads, otherwise PLATFORM
+	 */
+	public static synchronized ExecutionMode get() {
+		if (current == null) {
+			String mode = System.getProperty(PROPERTY, "platform");
+			current = mode.equalsIgnoreCase("virtual") ? VIRTUAL : PLATFORM;
+			if (current == VIRTUAL && virtualThreadFactory("probe") == null) {
+				logger.warning("Virtual threads need Java 21 or later; using platform threads");
+				current = PLATFORM;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Get a factory of threads for this mode.
+	 * Platform threads are daemon threads named <i>name</i>-1, -2, ...
+	 * @param name prefix of the names of the threads
+	 * @return thread factory
+	 */
+	public ThreadFactory threadFactory(final String name) {
+		if (this == VIRTUAL) return virtualThreadFactory(name);
+		final AtomicInteger count = new AtomicInteger();
+		return task -> {
+			Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Get an executor that runs each task on a new virtual thread.
+	 * @param name prefix of the names of the threads
+	 * @return the executor, or null in PLATFORM mode
+	 */
+	public ExecutorService newThreadPerTaskExecutor(String name) {
+		if (this != VIRTUAL) return null;
+		try {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, virtualThreadFactory(name));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Can't make a virtual thread executor", e);
+		}
+	}
+
+	/**
+	 * Make a factory of virtual threads named <i>name</i>-0, -1, ...
+	 * with Thread.ofVirtual().name(name, 0).factory().
+	 * @return the factory, or null if the JVM has no virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory(String name) {
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtual = builder.getMethod("name", String.class, long.class).invoke(virtual, name + "-", 0L);
+			return (ThreadFactory) builder.getMethod("factory").invoke(virtual);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
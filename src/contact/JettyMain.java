@@ -1,19 +1,23 @@
 package contact;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import org.eclipse.jetty.security.IdentityService;
 import org.eclipse.jetty.security.LoginService;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.UserIdentity;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.server.ServerProperties;
 
 import contact.resource.ContactResource;
-import contact.service.mem.MemDaoFactory;
 
 /**
  * <p>
@@ -60,11 +64,30 @@ import contact.service.mem.MemDaoFactory;
  * may cause a problem if you have another version of the same JARs in
  * your project!  If you do, compare the JARs, or switch to a Maven
  * project so Maven will manage your dependencies. 
+ * </p>
+ * <p>
+ * Requests are handled on the threads of the ExecutionMode set by
+ * <tt>contact.executionMode</tt>.  The server is tuned with these
+ * system properties:
+ * <ul>
+ * <li><tt>contact.server.maxThreads</tt> - most threads in the
+ *     platform thread pool (default 200)</li>
+ * <li><tt>contact.server.minThreads</tt> - threads kept in the
+ *     platform thread pool when idle (default 8)</li>
+ * <li><tt>contact.server.threadIdleTimeout</tt> - milliseconds an extra
+ *     platform thread waits for work before it stops (default 60000)</li>
+ * <li><tt>contact.server.acceptors</tt> - acceptor threads (default -1, Jetty chooses)</li>
+ * <li><tt>contact.server.selectors</tt> - selector threads (default -1, Jetty chooses)</li>
+ * <li><tt>contact.server.idleTimeout</tt> - milliseconds an idle
+ *     connection is kept open (default 30000)</li>
+ * </ul>
  * 
  * @author jim
  *
  */
 public class JettyMain {
+	/** prefix of the system properties that tune the server. */
+	static final String PROPERTY_PREFIX = "contact.server.";
 
 	private static Server server;
 
@@ -82,7 +105,13 @@ public class JettyMain {
 	 * @return url
 	 */
 	public static String startServer(int port) {
-		server = new Server( port );
+		server = new Server( threadPool() );
+		ServerConnector connector = new ServerConnector( server,
+				Integer.getInteger(PROPERTY_PREFIX + "acceptors", -1),
+				Integer.getInteger(PROPERTY_PREFIX + "selectors", -1) );
+		connector.setPort( port );
+		connector.setIdleTimeout( Long.getLong(PROPERTY_PREFIX + "idleTimeout", 30000) );
+		server.addConnector( connector );
 
 		ServletContextHandler context = new ServletContextHandler( ServletContextHandler.SESSIONS );
 
@@ -91,11 +120,13 @@ public class JettyMain {
 		ServletHolder holder = new ServletHolder( org.glassfish.jersey.servlet.ServletContainer.class );
 
 		holder.setInitParameter(ServerProperties.PROVIDER_PACKAGES, "contact.resource");
+		// let long-lived responses, like the change feed, wait without holding a thread
+		holder.setAsyncSupported(true);
 		context.addServlet( holder, "/*" );
 
 		server.setHandler( context );
 
-		System.out.println("Starting Jetty server on port " + port);
+		System.out.println("Starting Jetty server on port " + port + " with " + ExecutionMode.get().name().toLowerCase() + " threads");
 		try {
 			server.start();
 		} catch (Exception e) {
@@ -105,6 +136,21 @@ public class JettyMain {
 		return server.getURI().toString();
 	}
 
+	/**
+	 * Make the pool of threads that handle requests, for the execution mode.
+	 * @return a pool of platform threads, or an executor that starts a virtual thread per task
+	 */
+	private static ThreadPool threadPool() {
+		ExecutorService virtual = ExecutionMode.get().newThreadPerTaskExecutor("jetty");
+		if (virtual != null) return new ExecutorThreadPool( virtual );
+		QueuedThreadPool pool = new QueuedThreadPool(
+				Integer.getInteger(PROPERTY_PREFIX + "maxThreads", 200),
+				Integer.getInteger(PROPERTY_PREFIX + "minThreads", 8),
+				Integer.getInteger(PROPERTY_PREFIX + "threadIdleTimeout", 60000) );
+		pool.setName( "jetty" );
+		return pool;
+	}
+
 	private static void waitToStop() {
 		System.out.println("Server started.  Press ENTER to stop it.");
 		try {
@@ -117,7 +163,7 @@ public class JettyMain {
 	}
 
 	public static void stopServer() {
-		MemDaoFactory.getInstance().shutdown();
+		ContactResource.daoFactory().shutdown();
 		try {
 			server.stop();
 		} catch (Exception e) {
@@ -1,11 +1,11 @@
 package contact.entity;
 import java.io.Serializable;
+import java.util.Objects;
 
 import javax.persistence.Entity;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Version;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -23,14 +23,21 @@ import javax.xml.bind.annotation.XmlRootElement;
 public class Contact implements Serializable {
 	private static final long serialVersionUID = 1L;
 
+	/** Set by the DAO from its IdAllocator when a new contact is saved. */
 	@Id 
-	@GeneratedValue(strategy = GenerationType.AUTO)
 	@XmlAttribute
 	private long id;
 	private String title;
 	private String name;
 	private String email;
 	private String phoneNumber;
+	/**
+	 * Version of this contact, incremented by the DAO each time it is saved.
+	 * Used as the ETag of the contact and for optimistic locking.
+	 */
+	@Version
+	@XmlAttribute
+	private long version;
 
 	public Contact() { }
 
@@ -45,6 +52,19 @@ public class Contact implements Serializable {
 		this.id = id;
 	}
 
+	/**
+	 * Copy constructor.
+	 * @param other the contact to copy all attributes from
+	 */
+	public Contact(Contact other) {
+		this.id = other.id;
+		this.title = other.title;
+		this.name = other.name;
+		this.email = other.email;
+		this.phoneNumber = other.phoneNumber;
+		this.version = other.version;
+	}
+
 	public String getPhoneNumber() {
 		return phoneNumber;
 	}
@@ -86,6 +106,14 @@ public class Contact implements Serializable {
 		this.id = id;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	@Override
 	public String toString() {
 		return String.format("[%ld] %s (%s)", id, name, title);
@@ -118,6 +146,17 @@ public class Contact implements Serializable {
 		if (update.getPhoneNumber() != null) this.setPhoneNumber(update.getPhoneNumber());
 	}
 
+	/**
+	 * Test if another contact has the same title, name, email and phone number.
+	 * The id and version are not compared.
+	 * @param other the contact to compare to this one
+	 * @return true if all four fields are equal
+	 */
+	public boolean hasSameFields(Contact other) {
+		return Objects.equals(title, other.title) && Objects.equals(name, other.name)
+				&& Objects.equals(email, other.email) && Objects.equals(phoneNumber, other.phoneNumber);
+	}
+
 	/**
 	 * Test if a string is null or only whitespace.
 	 * @param arg the string to test
@@ -127,8 +166,12 @@ public class Contact implements Serializable {
 		return arg == null || arg.matches("\\s*") ;
 	}
 
+	/**
+	 * Hash code consistent with equals, which only compares id.
+	 * Use the version, not the hash code, to tell if a contact changed.
+	 */
 	@Override
 	public int hashCode() {
-		return Long.hashCode(id) + title.hashCode()*11 - name.hashCode()*7 + email.hashCode()*101 - phoneNumber.hashCode()*23;
+		return Long.hashCode(id);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package contact.entity;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Encode and decode contacts in a compact binary form, for callers
+ * that don't want to parse XML.  This class uses no JAXB or JAX-RS,
+ * so clients can use it on its own (with Contact) to read and
+ * write the <tt>application/x-contact-binary</tt> media type.
+ * <p>
+ * A contact is written as:
+ * <ul>
+ * <li>id, as a varint</li>
+ * <li>version, as a varint</li>
+ * <li>title, name, email and phoneNumber, each as a varint of
+ *     the UTF-8 length plus one (0 for null) followed by the UTF-8 bytes</li>
+ * </ul>
+ * A list of contacts is the number of contacts as a varint,
+ * followed by the contacts.  A varint is an unsigned number in groups
+ * of 7 bits, least significant group first, with the high bit set
+ * on every byte but the last.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ContactBinaryCodec {
+	/** media type of the binary representation. */
+	public static final String MEDIA_TYPE = "application/x-contact-binary";
+	/** largest string field accepted when decoding. */
+	private static final int MAX_FIELD_LENGTH = 1 << 20;
+
+	private ContactBinaryCodec() {
+		// only static methods
+	}
+
+	/**
+	 * Encode a contact.
+	 * @param contact the contact to write
+	 * @return the encoded contact
+	 */
+	public static byte[] toBytes(Contact contact) {
+		ByteArrayBuffer out = new ByteArrayBuffer();
+		try {
+			write(contact, out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by a byte buffer
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write a contact.
+	 * @param contact the contact to write
+	 * @param out where to write it
+	 * @throws IOException if out cannot be written
+	 */
+	public static void write(Contact contact, OutputStream out) throws IOException {
+		writeVarint(out, contact.getId());
+		writeVarint(out, contact.getVersion());
+		writeString(out, contact.getTitle());
+		writeString(out, contact.getName());
+		writeString(out, contact.getEmail());
+		writeString(out, contact.getPhoneNumber());
+	}
+
+	/**
+	 * Write a list of contacts.
+	 * @param contacts the contacts to write
+	 * @param out where to write them
+	 * @throws IOException if out cannot be written
+	 */
+	public static void writeList(Collection<Contact> contacts, OutputStream out) throws IOException {
+		writeVarint(out, contacts.size());
+		for (Contact contact : contacts) write(contact, out);
+	}
+
+	/**
+	 * Read a contact.
+	 * @param in where to read it from
+	 * @return the contact
+	 * @throws IOException if in cannot be read or is not a contact
+	 */
+	public static Contact read(InputStream in) throws IOException {
+		Contact contact = new Contact(readVarint(in));
+		contact.setVersion(readVarint(in));
+		contact.setTitle(readString(in));
+		contact.setName(readString(in));
+		contact.setEmail(readString(in));
+		contact.setPhoneNumber(readString(in));
+		return contact;
+	}
+
+	/**
+	 * Read a list of contacts.
+	 * @param in where to read them from
+	 * @return the contacts
+	 * @throws IOException if in cannot be read or is not a list of contacts
+	 */
+	public static List<Contact> readList(InputStream in) throws IOException {
+		long count = readVarint(in);
+		if (count > Integer.MAX_VALUE) throw new IOException("Too many contacts: " + count);
+		// don't trust the count for the initial capacity
+		List<Contact> contacts = new ArrayList<Contact>((int) Math.min(count, 1024));
+		for (long k = 0; k < count; k++) contacts.add(read(in));
+		return contacts;
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException("Contact data is truncated");
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Varint is too long");
+	}
+
+	private static void writeString(OutputStream out, String value) throws IOException {
+		if (value == null) {
+			writeVarint(out, 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length + 1L);
+		out.write(bytes);
+	}
+
+	private static String readString(InputStream in) throws IOException {
+		long length = readVarint(in) - 1;
+		if (length < 0) return null;
+		if (length > MAX_FIELD_LENGTH) throw new IOException("Field is too long: " + length);
+		byte[] bytes = new byte[(int) length];
+		int n = 0;
+		while (n < bytes.length) {
+			int count = in.read(bytes, n, bytes.length - n);
+			if (count < 0) throw new EOFException("Contact data is truncated");
+			n += count;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** ByteArrayOutputStream without synchronized methods. */
+	private static class ByteArrayBuffer extends OutputStream {
+		private byte[] bytes = new byte[64];
+		private int size;
+
+		@Override
+		public void write(int b) {
+			if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+			bytes[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (size + len > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size * 2, size + len));
+			System.arraycopy(b, off, bytes, size, len);
+			size += len;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package contact.entity;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The fields of a contact that a client can ask for, to get
+ * a smaller projection of each contact instead of all of it.
+ * The id and version identify a contact and are always included,
+ * so they are not fields here.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public enum ContactField {
+	TITLE("title", Contact::getTitle, Contact::setTitle),
+	NAME("name", Contact::getName, Contact::setName),
+	EMAIL("email", Contact::getEmail, Contact::setEmail),
+	PHONE_NUMBER("phoneNumber", Contact::getPhoneNumber, Contact::setPhoneNumber);
+
+	private final String property;
+	private final Function<Contact,String> getter;
+	private final BiConsumer<Contact,String> setter;
+
+	private ContactField(String property, Function<Contact,String> getter, BiConsumer<Contact,String> setter) {
+		this.property = property;
+		this.getter = getter;
+		this.setter = setter;
+	}
+
+	/**
+	 * @return name of the field in Contact, in XML and JSON and in queries
+	 */
+	public String getProperty() {
+		return property;
+	}
+
+	/**
+	 * Get the value of this field.
+	 * @param contact the contact to read
+	 * @return the value
+	 */
+	public String get(Contact contact) {
+		return getter.apply(contact);
+	}
+
+	/**
+	 * Set the value of this field.
+	 * @param contact the contact to change
+	 * @param value the new value
+	 */
+	public void set(Contact contact, String value) {
+		setter.accept(contact, value);
+	}
+
+	/**
+	 * Parse a comma separated list of field names, such as
+	 * <tt>id,name,phoneNumber</tt>.  <tt>id</tt> and <tt>version</tt>
+	 * are allowed but ignored, since they are always included.
+	 * @param names the list of names
+	 * @return the named fields
+	 * @throws IllegalArgumentException if a name is not a field of Contact
+	 */
+	public static Set<ContactField> parse(String names) {
+		Set<ContactField> fields = EnumSet.noneOf(ContactField.class);
+		for (String name : names.split(",")) {
+			name = name.trim();
+			if (name.isEmpty() || name.equals("id") || name.equals("version")) continue;
+			fields.add(forProperty(name));
+		}
+		return fields;
+	}
+
+	/**
+	 * Get the field with a property name.
+	 * @param property name of the field in Contact
+	 * @return the field
+	 * @throws IllegalArgumentException if there is no such field
+	 */
+	public static ContactField forProperty(String property) {
+		for (ContactField field : values()) {
+			if (field.property.equals(property)) return field;
+		}
+		throw new IllegalArgumentException("Unknown field: " + property);
+	}
+
+	/**
+	 * Copy the id, version and some fields of a contact.
+	 * The other fields of the copy are null, so they are not serialized.
+	 * @param contact the contact to copy
+	 * @param fields the fields to copy
+	 * @return the copy
+	 */
+	public static Contact project(Contact contact, Set<ContactField> fields) {
+		Contact copy = new Contact(contact.getId());
+		copy.setVersion(contact.getVersion());
+		for (ContactField field : fields) field.set(copy, field.get(contact));
+		return copy;
+	}
+}
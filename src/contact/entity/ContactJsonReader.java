@@ -0,0 +1,286 @@
+package contact.entity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read contacts from newline-delimited JSON (NDJSON), one contact
+ * object per line, in the shape written by ContactJsonWriter:
+ * <pre>
+ * {"id":101,"title":"Test contact","name":"Joe Experimental","email":"none@testing.com","phoneNumber":"0888888888"}
+ * </pre>
+ * Lines are read one at a time, so only one contact is in memory at a time.
+ * Lines end with a newline; a carriage return before it is white space.
+ * Blank lines are skipped and unknown fields are ignored, whatever
+ * their values, including objects and arrays.
+ * <p>
+ * A line that is not a contact object is thrown as IllegalArgumentException
+ * after it is read, so the caller may skip it and go on with the next line.
+ * So is a line longer than MAX_LINE_LENGTH, which is skipped without
+ * being kept in memory, and a value nested deeper than MAX_DEPTH.
+ * Errors reading the stream are thrown as IllegalStateException.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ContactJsonReader implements Iterator<Contact>, Closeable {
+	/** most characters in a line. */
+	public static final int MAX_LINE_LENGTH = 1 << 20;
+	/** most objects and arrays nested in each other in a contact. */
+	public static final int MAX_DEPTH = 64;
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int bufferPos;
+	private int bufferEnd;
+	/** the next non-blank line, or null at the end of the input. */
+	private String line;
+	/** whether the next line is longer than MAX_LINE_LENGTH, so line has only its start. */
+	private boolean tooLong;
+
+	/**
+	 * Start reading contacts.
+	 * @param in the UTF-8 input.  It is closed when this reader is closed.
+	 * @throws IOException if the input cannot be read
+	 */
+	public ContactJsonReader(InputStream in) throws IOException {
+		this.in = new InputStreamReader( in, StandardCharsets.UTF_8 );
+		advance();
+	}
+
+	/** Read the next non-blank line. */
+	private void advance() throws IOException {
+		do {
+			line = readLine();
+		} while (line != null && ! tooLong && line.trim().isEmpty());
+	}
+
+	/**
+	 * Read a line without its newline, keeping at most MAX_LINE_LENGTH
+	 * characters of it and setting tooLong if there are more.
+	 * @return the line, or null at the end of the input
+	 */
+	private String readLine() throws IOException {
+		StringBuilder out = new StringBuilder();
+		boolean read = false;
+		tooLong = false;
+		while (true) {
+			if (bufferPos == bufferEnd) {
+				int n = in.read( buffer, 0, buffer.length );
+				if (n < 0) return read ? out.toString() : null;
+				bufferPos = 0;
+				bufferEnd = n;
+			}
+			read = true;
+			int start = bufferPos;
+			while (bufferPos < bufferEnd && buffer[bufferPos] != '\n') bufferPos++;
+			int length = bufferPos - start;
+			if (tooLong || out.length() + length > MAX_LINE_LENGTH) tooLong = true;
+			else out.append( buffer, start, length );
+			if (bufferPos < bufferEnd) {
+				bufferPos++; // the newline
+				return out.toString();
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return line != null;
+	}
+
+	@Override
+	public Contact next() {
+		if (line == null) throw new NoSuchElementException();
+		String json = line;
+		boolean skipped = tooLong;
+		try {
+			advance();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read contact", e);
+		}
+		if (skipped) throw new IllegalArgumentException("Line is longer than " + MAX_LINE_LENGTH + " characters");
+		return parse(json);
+	}
+
+	/**
+	 * Parse one JSON contact object.
+	 * @param json the JSON text
+	 * @return the contact
+	 * @throws IllegalArgumentException if the text is not a JSON object,
+	 *     or has objects or arrays nested deeper than MAX_DEPTH
+	 */
+	public static Contact parse(String json) {
+		return new Parser(json).contact();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Parser for a JSON contact object.  Fields of the contact have string,
+	 * number or null values; objects and arrays are skipped.
+	 */
+	private static class Parser {
+		/** value of an object or array, which no field of a contact takes. */
+		private static final Object NESTED = new Object();
+		private final String text;
+		private int pos;
+		/** number of objects and arrays being skipped. */
+		private int depth;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		Contact contact() {
+			Contact contact = new Contact();
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+			} else {
+				do {
+					String name = string();
+					expect(':');
+					Object value = value();
+					set(contact, name, value);
+				} while (accept(','));
+				expect('}');
+			}
+			if (peek() != 0) throw error("Unexpected text after object");
+			return contact;
+		}
+
+		private static void set(Contact contact, String name, Object value) {
+			switch (name) {
+			case "id": contact.setId(toLong(name, value)); break;
+			case "version": contact.setVersion(toLong(name, value)); break;
+			case "title": contact.setTitle(toText(name, value)); break;
+			case "name": contact.setName(toText(name, value)); break;
+			case "email": contact.setEmail(toText(name, value)); break;
+			case "phoneNumber": contact.setPhoneNumber(toText(name, value)); break;
+			default: // ignore unknown fields
+			}
+		}
+
+		private static long toLong(String name, Object value) {
+			if (value == null) return 0;
+			if (value == NESTED) throw new IllegalArgumentException(name + " must be an integer");
+			try {
+				return Long.parseLong(value.toString());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + " must be an integer");
+			}
+		}
+
+		private static String toText(String name, Object value) {
+			if (value != null && ! (value instanceof String))
+				throw new IllegalArgumentException(name + " must be a string");
+			return (String) value;
+		}
+
+		/**
+		 * @return a String for a JSON string, the literal text of a number,
+		 *     Boolean, null, or NESTED for an object or array
+		 */
+		private Object value() {
+			char c = peek();
+			if (c == '"') return string();
+			if (c == '{' || c == '[') {
+				skipNested();
+				return NESTED;
+			}
+			if (text.startsWith("null", pos)) { pos += 4; return null; }
+			if (text.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+			if (text.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+			int start = pos;
+			while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+			if (start == pos) throw error("Expected a value");
+			return text.substring(start, pos);
+		}
+
+		private String string() {
+			expect('"');
+			StringBuilder out = new StringBuilder();
+			while (pos < text.length()) {
+				char c = text.charAt(pos++);
+				if (c == '"') return out.toString();
+				if (c != '\\') {
+					out.append(c);
+					continue;
+				}
+				if (pos >= text.length()) break;
+				c = text.charAt(pos++);
+				switch (c) {
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'u':
+					if (pos + 4 > text.length()) throw error("Bad unicode escape");
+					try {
+						out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Bad unicode escape");
+					}
+					pos += 4;
+					break;
+				default: out.append(c); // \" \\ \/
+				}
+			}
+			throw error("Unterminated string");
+		}
+
+		/** Skip an object or array, checking that it is well formed. */
+		private void skipNested() {
+			// the contact object itself is one level
+			if (++depth >= MAX_DEPTH) throw error("Nested deeper than " + MAX_DEPTH);
+			if (accept('{')) {
+				if (! accept('}')) {
+					do {
+						string();
+						expect(':');
+						value();
+					} while (accept(','));
+					expect('}');
+				}
+			} else {
+				expect('[');
+				if (! accept(']')) {
+					do {
+						value();
+					} while (accept(','));
+					expect(']');
+				}
+			}
+			depth--;
+		}
+
+		/** Skip white space and return the next character, or 0 at the end. */
+		private char peek() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		private boolean accept(char c) {
+			if (peek() != c) return false;
+			pos++;
+			return true;
+		}
+
+		private void expect(char c) {
+			if (! accept(c)) throw error("Expected '" + c + "'");
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at column " + (pos + 1));
+		}
+	}
+}
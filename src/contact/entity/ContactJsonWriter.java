@@ -0,0 +1,154 @@
+package contact.entity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Write contacts as JSON without reflection.
+ * The JSON has the same shape that JAXB/MOXy gives for a Contact:
+ * <pre>
+ * {"id":101,"version":1,"title":"Test contact","name":"Joe Experimental","email":"none@testing.com","phoneNumber":"0888888888"}
+ * </pre>
+ * Null fields are left out.  A list of contacts is written as a JSON array.
+ * <p>
+ * Lists are encoded to UTF-8 in chunks, with a character and a byte buffer
+ * that each thread reuses, so writing a large list makes little garbage.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ContactJsonWriter {
+	/** number of characters collected before they are encoded and written. */
+	private static final int CHUNK_SIZE = 8192;
+	private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/** Buffers reused by one thread. */
+	private static class Buffers {
+		final StringBuilder chars = new StringBuilder(CHUNK_SIZE + 1024);
+		/** room for the UTF-8 of a chunk: at most 3 bytes per char. */
+		byte[] bytes = new byte[3 * (CHUNK_SIZE + 1024)];
+	}
+
+	private ContactJsonWriter() {
+		// only static methods
+	}
+
+	/**
+	 * Get the JSON for a contact as UTF-8 bytes.
+	 * @param contact the contact to write
+	 * @return JSON object for the contact
+	 */
+	public static byte[] toBytes(Contact contact) {
+		StringBuilder out = new StringBuilder(128);
+		write(contact, out);
+		return out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Append the JSON for a contact.
+	 * @param contact the contact to write
+	 * @param out where to append the JSON object
+	 */
+	public static void write(Contact contact, StringBuilder out) {
+		out.append("{\"id\":").append(contact.getId());
+		out.append(",\"version\":").append(contact.getVersion());
+		writeField(out, "title", contact.getTitle());
+		writeField(out, "name", contact.getName());
+		writeField(out, "email", contact.getEmail());
+		writeField(out, "phoneNumber", contact.getPhoneNumber());
+		out.append('}');
+	}
+
+	/**
+	 * Write a JSON array of contacts as UTF-8.
+	 * @param contacts the contacts to write
+	 * @param out where to write the JSON.  It is not closed or flushed.
+	 * @throws IOException if out cannot be written
+	 */
+	public static void writeList(Iterable<Contact> contacts, OutputStream out) throws IOException {
+		Buffers buffers = BUFFERS.get();
+		StringBuilder chars = buffers.chars;
+		chars.setLength(0);
+		chars.append('[');
+		boolean first = true;
+		for (Contact contact : contacts) {
+			if (! first) chars.append(',');
+			first = false;
+			write(contact, chars);
+			if (chars.length() >= CHUNK_SIZE) writeChunk(buffers, out);
+		}
+		chars.append(']');
+		writeChunk(buffers, out);
+	}
+
+	/** Encode the collected characters as UTF-8, write them and clear the buffer. */
+	private static void writeChunk(Buffers buffers, OutputStream out) throws IOException {
+		StringBuilder chars = buffers.chars;
+		int length = chars.length();
+		if (buffers.bytes.length < 3 * length) buffers.bytes = new byte[3 * length];
+		byte[] bytes = buffers.bytes;
+		int n = 0;
+		for (int k = 0; k < length; k++) {
+			char c = chars.charAt(k);
+			if (c < 0x80) {
+				bytes[n++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[n++] = (byte) (0xc0 | c >> 6);
+				bytes[n++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && k + 1 < length && Character.isLowSurrogate(chars.charAt(k + 1))) {
+				int code = Character.toCodePoint(c, chars.charAt(++k));
+				bytes[n++] = (byte) (0xf0 | code >> 18);
+				bytes[n++] = (byte) (0x80 | code >> 12 & 0x3f);
+				bytes[n++] = (byte) (0x80 | code >> 6 & 0x3f);
+				bytes[n++] = (byte) (0x80 | code & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				bytes[n++] = '?'; // unpaired surrogate, as String.getBytes does
+			} else {
+				bytes[n++] = (byte) (0xe0 | c >> 12);
+				bytes[n++] = (byte) (0x80 | c >> 6 & 0x3f);
+				bytes[n++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		out.write(bytes, 0, n);
+		chars.setLength(0);
+	}
+
+	private static void writeField(StringBuilder out, String name, String value) {
+		if (value == null) return;
+		out.append(",\"").append(name).append("\":");
+		writeString(out, value);
+	}
+
+	/**
+	 * Append a JSON string literal.
+	 * @param out where to append the string
+	 * @param value the string to quote and escape
+	 */
+	public static void writeString(StringBuilder out, String value) {
+		out.append('"');
+		int start = 0;
+		for (int k = 0; k < value.length(); k++) {
+			char c = value.charAt(k);
+			if (c >= 0x20 && c != '"' && c != '\\') continue;
+			out.append(value, start, k);
+			switch (c) {
+			case '"': out.append("\\\""); break;
+			case '\\': out.append("\\\\"); break;
+			case '\n': out.append("\\n"); break;
+			case '\r': out.append("\\r"); break;
+			case '\t': out.append("\\t"); break;
+			default:
+				out.append("\\u00");
+				out.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+			}
+			start = k + 1;
+		}
+		out.append(value, start, value.length());
+		out.append('"');
+	}
+}
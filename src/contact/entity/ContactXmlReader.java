@@ -0,0 +1,103 @@
+package contact.entity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Read the contacts in a ContactList XML document one at a time.
+ * The document is parsed with StAX and each <tt>contact</tt> element is
+ * unmarshalled on its own, so only one contact is in memory at a time
+ * no matter how large the document is.
+ * <p>
+ * Errors while reading are thrown as IllegalStateException,
+ * since Iterator methods cannot throw checked exceptions.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ContactXmlReader implements Iterator<Contact>, Closeable {
+	private static final JAXBContext CONTEXT;
+	private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance( Contact.class );
+		} catch (JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+		// don't resolve external entities in documents we read
+		INPUT_FACTORY.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+	}
+
+	private final InputStream in;
+	private final XMLStreamReader xml;
+	private final Unmarshaller unmarshaller;
+	/** true if xml is positioned at the start of a contact element. */
+	private boolean atContact;
+
+	/**
+	 * Start reading a document.
+	 * @param in the XML document.  It is closed when this reader is closed.
+	 * @throws IOException if the document cannot be parsed
+	 */
+	public ContactXmlReader(InputStream in) throws IOException {
+		this.in = in;
+		try {
+			xml = INPUT_FACTORY.createXMLStreamReader( in );
+			unmarshaller = CONTEXT.createUnmarshaller();
+			advance();
+		} catch (XMLStreamException | JAXBException e) {
+			throw new IOException("Cannot read contacts", e);
+		}
+	}
+
+	/** Move to the start of the next contact element, or to the end of the document. */
+	private void advance() throws XMLStreamException {
+		atContact = false;
+		while (xml.hasNext()) {
+			if (xml.getEventType() == XMLStreamConstants.START_ELEMENT && "contact".equals( xml.getLocalName() )) {
+				atContact = true;
+				return;
+			}
+			xml.next();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return atContact;
+	}
+
+	@Override
+	public Contact next() {
+		if (! atContact) throw new NoSuchElementException();
+		try {
+			Contact contact = unmarshaller.unmarshal( xml, Contact.class ).getValue();
+			advance();
+			return contact;
+		} catch (XMLStreamException | JAXBException e) {
+			throw new IllegalStateException("Cannot read contact", e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+}
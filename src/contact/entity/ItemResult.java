@@ -0,0 +1,82 @@
+package contact.entity;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Result of one item of a request that handles many contacts at once,
+ * such as a bulk import.  The status is the HTTP status the item would
+ * have had as a request of its own.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@XmlRootElement(name="result")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ItemResult {
+	/** position of the item in the request, starting at 0. */
+	@XmlAttribute
+	private int index;
+	/** id of the contact, or 0 if not known. */
+	@XmlAttribute
+	private long id;
+	@XmlAttribute
+	private int status;
+	/** version of the contact after the item, used as its ETag; null if nothing was saved. */
+	@XmlAttribute
+	private Long version;
+	/** why the item failed, or null. */
+	@XmlElement
+	private String message;
+
+	public ItemResult() { }
+
+	/**
+	 * @param index position of the item in the request
+	 */
+	public ItemResult(int index) {
+		this.index = index;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
@@ -0,0 +1,35 @@
+package contact.entity;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Results of all items of a request that handles many contacts, in item order.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@XmlRootElement(name="results")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ItemResultList {
+
+	@XmlElement(name="result")
+	private List<ItemResult> results;
+
+	public ItemResultList() { }
+
+	public ItemResultList(List<ItemResult> results) {
+		this.results = results;
+	}
+
+	public void setResults(List<ItemResult> results) {
+		this.results = results;
+	}
+
+	public List<ItemResult> getResults() {
+		return this.results;
+	}
+}
@@ -0,0 +1,78 @@
+package contact.entity;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * One change in a batch request, with the same meaning as a request
+ * of its own to the contacts resource:
+ * <pre>
+ * &lt;operation method="PUT" id="101" ifMatch="3"&gt;&lt;contact&gt;...&lt;/contact&gt;&lt;/operation&gt;
+ * </pre>
+ * POST creates the contact (its id may be 0), PUT updates contact id
+ * like ContactDao.update, and DELETE deletes contact id.
+ * ifMatch is the version the contact must have for PUT or DELETE.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@XmlRootElement(name="operation")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Operation {
+	/** the kinds of operation, named like the HTTP methods they stand for. */
+	public enum Method { POST, PUT, DELETE }
+
+	@XmlAttribute
+	private Method method;
+	/** id of the contact to update or delete. */
+	@XmlAttribute
+	private long id;
+	/** version the contact must have, or null for any version. */
+	@XmlAttribute
+	private Long ifMatch;
+	/** the contact to create, or the update; null for DELETE. */
+	@XmlElement
+	private Contact contact;
+
+	public Operation() { }
+
+	public Operation(Method method, long id, Contact contact) {
+		this.method = method;
+		this.id = id;
+		this.contact = contact;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public void setMethod(Method method) {
+		this.method = method;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public Long getIfMatch() {
+		return ifMatch;
+	}
+
+	public void setIfMatch(Long ifMatch) {
+		this.ifMatch = ifMatch;
+	}
+
+	public Contact getContact() {
+		return contact;
+	}
+
+	public void setContact(Contact contact) {
+		this.contact = contact;
+	}
+}
@@ -0,0 +1,29 @@
+package contact.entity;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The operations of a batch request, in the order they are applied.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@XmlRootElement(name="operations")
+@XmlAccessorType(XmlAccessType.FIELD)
+public class OperationList {
+
+	@XmlElement(name="operation")
+	private List<Operation> operations;
+
+	public void setOperations(List<Operation> operations) {
+		this.operations = operations;
+	}
+
+	public List<Operation> getOperations() {
+		return this.operations;
+	}
+}
@@ -0,0 +1,337 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import contact.ExecutionMode;
+import contact.entity.Contact;
+import contact.service.ChangeLog;
+import contact.service.ChangeLog.Change;
+import contact.service.ContactDao;
+import contact.service.ContactListener;
+
+/**
+ * Sends changes to contacts to subscribers as Server-Sent Events.
+ * Each event has the name <tt>created</tt>, <tt>updated</tt> or
+ * <tt>deleted</tt>, the data <tt>{"id":101,"version":2}</tt> (no version
+ * for a delete) and an id that a client can send back as Last-Event-ID
+ * to resume where it stopped.  If the changes since then are no longer
+ * in the ChangeLog, or the id is from an earlier run of the server,
+ * the client gets a <tt>reset</tt> event instead and should read
+ * the contacts again.
+ * <p>
+ * One thread hands out all events, in order: writers only add to
+ * the log and wake that thread.  It puts each event in a bounded
+ * buffer of every subscriber, and a task of the subscriber writes the
+ * buffer to its connection, so idle subscribers hold no thread and a
+ * slow one doesn't hold up the others.  The tasks run on a fixed
+ * number of threads; a subscriber has at most one task at a time, so
+ * tasks that wait for a thread are few, and a subscriber whose buffer
+ * fills while its task waits is dropped like a slow one.  A subscriber whose buffer is
+ * full, or whose write has been blocked too long, is dropped; its
+ * connection is closed once the blocked write ends, when the client
+ * reads or the connection times out.  The client can reconnect with
+ * Last-Event-ID.  A <tt>heartbeat</tt> event, with no id, is sent to
+ * every subscriber from time to time, to keep the connection open and
+ * to find subscribers that have gone away.  (It is not a comment,
+ * because this Jersey can't write an event without data.)
+ * <p>
+ * The number of changes kept is set by the system property
+ * <tt>contact.changes.size</tt> (default 10000), the time
+ * between heartbeats by <tt>contact.changes.heartbeat</tt>
+ * (seconds, default 20), the number of events buffered for a
+ * subscriber by <tt>contact.changes.buffer</tt> (default 1000),
+ * the time a write may be blocked by
+ * <tt>contact.changes.writeTimeout</tt> (seconds, default 30), and
+ * the number of threads that write to subscribers by
+ * <tt>contact.changes.outputThreads</tt> (default 8; with virtual
+ * threads each task has a thread of its own).
+ *
+ * @author Natchanon Hongladaromp
+ */
+class ChangeFeed implements ContactListener {
+	/** system property with the number of changes kept for resuming. */
+	static final String SIZE_PROPERTY = "contact.changes.size";
+	/** system property with the seconds between heartbeat events. */
+	static final String HEARTBEAT_PROPERTY = "contact.changes.heartbeat";
+	/** system property with the number of events buffered for each subscriber. */
+	static final String BUFFER_PROPERTY = "contact.changes.buffer";
+	/** system property with the seconds a write to a subscriber may be blocked. */
+	static final String WRITE_TIMEOUT_PROPERTY = "contact.changes.writeTimeout";
+	/** system property with the number of threads that write to subscribers. */
+	static final String OUTPUT_THREADS_PROPERTY = "contact.changes.outputThreads";
+	/** the feed for the DAO currently used by the resource. */
+	private static ChangeFeed instance;
+
+	private final ContactDao dao;
+	private final ChangeLog log;
+	/** hands out all events; subscribers and sent are only used on this thread. */
+	private final ScheduledExecutorService writer;
+	/** runs the tasks that write the buffers of subscribers to their connections. */
+	private final ExecutorService outputs;
+	private final int bufferSize;
+	private final long writeTimeoutNanos;
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	/** sequence number of the last change sent to subscribers. */
+	private long sent;
+	/** true if the writer has been asked to send new changes and hasn't started yet. */
+	private final AtomicBoolean pending = new AtomicBoolean();
+
+	private ChangeFeed(ContactDao dao) {
+		this.dao = dao;
+		this.log = new ChangeLog(Integer.getInteger(SIZE_PROPERTY, 10000));
+		this.writer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "contact-change-feed");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ExecutorService virtual = ExecutionMode.get().newThreadPerTaskExecutor("contact-change-output");
+		this.outputs = virtual != null ? virtual
+				: Executors.newFixedThreadPool(Math.max(1, Integer.getInteger(OUTPUT_THREADS_PROPERTY, 8)),
+						ExecutionMode.get().threadFactory("contact-change-output"));
+		this.bufferSize = Math.max(1, Integer.getInteger(BUFFER_PROPERTY, 1000));
+		this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger(WRITE_TIMEOUT_PROPERTY, 30));
+		long heartbeat = Integer.getInteger(HEARTBEAT_PROPERTY, 20);
+		writer.scheduleWithFixedDelay(this::heartbeat, heartbeat, heartbeat, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * A client of the feed, with the events not yet written to it.
+	 * The feed thread adds events; at most one task at a time writes them.
+	 */
+	private final class Subscriber implements Runnable {
+		final EventOutput output;
+		/** events to write, guarded by this. */
+		private final Queue<OutboundEvent> buffer = new ArrayDeque<OutboundEvent>();
+		/** true while a task is writing the buffer, guarded by this. */
+		private boolean writing;
+		/** System.nanoTime when the write in progress started, guarded by this. */
+		private long writeStarted;
+		/** true once the subscriber is dropped; its task closes the output. Guarded by this. */
+		private boolean dropped;
+
+		Subscriber(EventOutput output) {
+			this.output = output;
+		}
+
+		/**
+		 * Buffer an event to write, or drop the subscriber if it is not keeping up.
+		 * @return false if the subscriber is dropped
+		 */
+		synchronized boolean offer(OutboundEvent event) {
+			if (dropped) return false;
+			if (buffer.size() >= bufferSize || (writeStarted != 0 && System.nanoTime() - writeStarted > writeTimeoutNanos)) {
+				drop();
+				return false;
+			}
+			buffer.add(event);
+			wake();
+			return true;
+		}
+
+		/** Drop the subscriber: its buffer is discarded and its output closed. */
+		synchronized void drop() {
+			dropped = true;
+			buffer.clear();
+			wake();
+		}
+
+		/** Start a task to write the buffer, unless one is running. */
+		private void wake() {
+			if (writing) return;
+			writing = true;
+			outputs.execute(this);
+		}
+
+		/** Write buffered events until there are none, then close the output if dropped. */
+		@Override
+		public void run() {
+			while (true) {
+				OutboundEvent event;
+				synchronized (this) {
+					event = dropped ? null : buffer.poll();
+					if (event == null) {
+						writing = false;
+						if (! dropped) return;
+					} else {
+						writeStarted = System.nanoTime();
+					}
+				}
+				if (event == null) {
+					close(output);
+					return;
+				}
+				try {
+					if (output.isClosed()) throw new IOException("closed");
+					output.write(event);
+				} catch (IOException | RuntimeException e) {
+					drop();
+				}
+				synchronized (this) {
+					writeStarted = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the feed for a DAO.  A new feed is made if the DAO is
+	 * not the one the current feed listens to.
+	 * @param dao the DAO whose changes are sent
+	 * @return feed for the DAO
+	 */
+	static synchronized ChangeFeed of(ContactDao dao) {
+		if (instance == null || instance.dao != dao) {
+			if (instance != null) {
+				instance.dao.removeContactListener(instance);
+				instance.writer.execute(instance::closeAll);
+				instance.writer.shutdown();
+			}
+			instance = new ChangeFeed(dao);
+			dao.addContactListener(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Add a subscriber.
+	 * @param lastEventId id of the last event the client has seen, or null to get only new changes
+	 * @return the stream of events to send to the client
+	 */
+	EventOutput subscribe(String lastEventId) {
+		EventOutput output = new EventOutput();
+		writer.execute(() -> start(output, lastEventId));
+		return output;
+	}
+
+	/** Send a new subscriber the changes it missed, then add it to the subscribers. */
+	private void start(EventOutput output, String lastEventId) {
+		Subscriber subscriber = new Subscriber(output);
+		if (lastEventId != null) {
+			List<Change> missed = since(lastEventId);
+			// later changes are sent to everyone by send()
+			int count = 0;
+			while (missed != null && count < missed.size() && missed.get(count).getSequence() <= sent) count++;
+			if (missed == null || count > bufferSize) {
+				subscriber.offer(reset());
+			} else {
+				for (Change change : missed.subList(0, count)) subscriber.offer(event(change));
+			}
+		}
+		subscribers.add(subscriber);
+	}
+
+	/**
+	 * Get the changes after an event id, up to the newest in the log.
+	 * @return the changes, or null if the id is not from this run or the changes were dropped
+	 */
+	private List<Change> since(String lastEventId) {
+		String prefix = ContactResource.EPOCH + "-";
+		if (! lastEventId.startsWith(prefix)) return null;
+		try {
+			return log.since(Long.parseLong(lastEventId.substring(prefix.length())));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/** Send every change after sent to all subscribers. */
+	private void send() {
+		pending.set(false);
+		List<Change> changes = log.since(sent);
+		if (changes == null) {
+			// more changes than the log holds were made since the last send
+			sent = log.getLastSequence();
+			broadcast(reset());
+			return;
+		}
+		for (Change change : changes) {
+			broadcast(event(change));
+			sent = change.getSequence();
+		}
+	}
+
+	private void heartbeat() {
+		broadcast(new OutboundEvent.Builder().name("heartbeat").data(String.class, "{}").build());
+	}
+
+	/** Buffer an event for all subscribers, removing the ones that are dropped. */
+	private void broadcast(OutboundEvent event) {
+		Iterator<Subscriber> itr = subscribers.iterator();
+		while (itr.hasNext()) {
+			if (! itr.next().offer(event)) itr.remove();
+		}
+	}
+
+	private void closeAll() {
+		for (Subscriber subscriber : subscribers) subscriber.drop();
+		subscribers.clear();
+		outputs.shutdown();
+	}
+
+	private static void close(EventOutput output) {
+		try {
+			output.close();
+		} catch (IOException e) {
+			// the client is gone anyway
+		}
+	}
+
+	private static OutboundEvent event(Change change) {
+		StringBuilder data = new StringBuilder(40);
+		data.append("{\"id\":").append(change.getId());
+		if (change.getType() != ChangeLog.Type.DELETED) data.append(",\"version\":").append(change.getVersion());
+		data.append('}');
+		return new OutboundEvent.Builder()
+				.id(eventId(change.getSequence()))
+				.name(change.getType().name().toLowerCase())
+				.mediaType(MediaType.APPLICATION_JSON_TYPE)
+				.data(String.class, data.toString())
+				.build();
+	}
+
+	/** Event telling a client to read the contacts again and go on from the last change sent. */
+	private OutboundEvent reset() {
+		return new OutboundEvent.Builder().name("reset").id(eventId(sent)).data(String.class, "{}").build();
+	}
+
+	/** Get the event id of a change; the server's start time keeps ids of different runs apart. */
+	private static String eventId(long sequence) {
+		return ContactResource.EPOCH + "-" + sequence;
+	}
+
+	/** Add a change to the log and wake the writer if it isn't about to run. */
+	private void append(ChangeLog.Type type, long id, long version) {
+		log.append(type, id, version);
+		if (pending.compareAndSet(false, true)) writer.execute(this::send);
+	}
+
+	@Override
+	public void contactCreated(Contact contact) {
+		append(ChangeLog.Type.CREATED, contact.getId(), contact.getVersion());
+	}
+
+	@Override
+	public void contactUpdated(Contact contact) {
+		append(ChangeLog.Type.UPDATED, contact.getId(), contact.getVersion());
+	}
+
+	@Override
+	public void contactDeleted(long id) {
+		append(ChangeLog.Type.DELETED, id, 0);
+	}
+}
@@ -0,0 +1,108 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+
+import contact.entity.Contact;
+import contact.entity.ContactBinaryCodec;
+import contact.entity.ContactList;
+
+/**
+ * Reads and writes contacts in the compact binary form of
+ * ContactBinaryCodec, for clients that send or accept
+ * <tt>application/x-contact-binary</tt>.
+ * <p>
+ * A single contact can be read as Contact or JAXBElement&lt;Contact&gt;,
+ * so resource methods that take XML or JSON take the binary form too.
+ * Lists of contacts are read and written as ContactList or
+ * Collection&lt;Contact&gt;.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@Provider
+@Consumes( ContactBinaryCodec.MEDIA_TYPE )
+@Produces( ContactBinaryCodec.MEDIA_TYPE )
+public class ContactBinaryProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+	/** the binary media type. */
+	public static final MediaType TYPE = MediaType.valueOf(ContactBinaryCodec.MEDIA_TYPE);
+	private static final QName CONTACT_NAME = new QName("contact");
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		if (type == JAXBElement.class) return isOf(genericType, Contact.class);
+		return type == Contact.class || type == ContactList.class
+				|| (type.isAssignableFrom(List.class) && isOf(genericType, Contact.class));
+	}
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream)
+			throws IOException, WebApplicationException {
+		try {
+			if (Contact.class.equals(type)) return ContactBinaryCodec.read(entityStream);
+			if (JAXBElement.class.equals(type))
+				return new JAXBElement<Contact>(CONTACT_NAME, Contact.class, ContactBinaryCodec.read(entityStream));
+			List<Contact> contacts = ContactBinaryCodec.readList(entityStream);
+			if (! ContactList.class.equals(type)) return contacts;
+			ContactList list = new ContactList();
+			list.setContactList(contacts);
+			return list;
+		} catch (IOException e) {
+			// truncated or malformed body
+			throw new BadRequestException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return Contact.class.isAssignableFrom(type) || type == ContactList.class
+				|| (Collection.class.isAssignableFrom(type) && isOf(genericType, Contact.class));
+	}
+
+	@Override
+	public long getSize(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException, WebApplicationException {
+		if (t instanceof Contact) {
+			ContactBinaryCodec.write((Contact) t, entityStream);
+			return;
+		}
+		Collection<Contact> contacts = t instanceof ContactList ? ((ContactList) t).getContactList() : (Collection<Contact>) t;
+		ContactBinaryCodec.writeList(contacts == null ? Collections.<Contact>emptyList() : contacts, entityStream);
+	}
+
+	/**
+	 * Test if a generic type has one type argument that is some class.
+	 */
+	private static boolean isOf(Type genericType, Class<?> argument) {
+		if (! (genericType instanceof ParameterizedType)) return false;
+		Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+		return arguments.length == 1 && arguments[0] instanceof Class
+				&& argument.isAssignableFrom((Class<?>) arguments[0]);
+	}
+}
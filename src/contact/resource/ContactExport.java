@@ -0,0 +1,95 @@
+package contact.resource;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import contact.entity.Contact;
+import contact.entity.ContactJsonWriter;
+import contact.service.ContactCursor;
+import contact.service.ContactDao;
+
+/**
+ * Writes every contact to a response as it is read from a DAO cursor,
+ * either as XML in the same layout as a ContactList or as NDJSON
+ * (one JSON object per line).  Nothing is held in memory but the
+ * output buffer, so the export starts sending at once and uses the
+ * same heap for any number of contacts.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class ContactExport implements StreamingOutput {
+	/** media type for newline-delimited JSON. */
+	static final String NDJSON = "application/x-ndjson";
+	static final MediaType NDJSON_TYPE = MediaType.valueOf(NDJSON);
+	/** size of the output buffer; a chunk is sent each time it fills. */
+	private static final int BUFFER_SIZE = 1 << 15;
+	private static final JAXBContext CONTEXT;
+
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance( Contact.class );
+		} catch (JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final ContactDao dao;
+	private final MediaType type;
+
+	/**
+	 * @param dao the DAO to read contacts from
+	 * @param type XML or NDJSON
+	 */
+	ContactExport(ContactDao dao, MediaType type) {
+		this.dao = dao;
+		this.type = type;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		OutputStream out = new BufferedOutputStream( output, BUFFER_SIZE );
+		try (ContactCursor cursor = dao.findAllCursor()) {
+			if (NDJSON_TYPE.isCompatible(type)) writeJson(cursor, out);
+			else writeXml(cursor, out);
+		}
+		out.flush();
+	}
+
+	private static void writeJson(ContactCursor cursor, OutputStream out) throws IOException {
+		StringBuilder line = new StringBuilder(256);
+		while (cursor.hasNext()) {
+			line.setLength(0);
+			ContactJsonWriter.write( cursor.next(), line );
+			line.append('\n');
+			out.write( line.toString().getBytes(StandardCharsets.UTF_8) );
+		}
+	}
+
+	private static void writeXml(ContactCursor cursor, OutputStream out) throws IOException {
+		try {
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter( out, "UTF-8" );
+			Marshaller marshaller = CONTEXT.createMarshaller();
+			marshaller.setProperty( Marshaller.JAXB_FRAGMENT, true );
+			xml.writeStartDocument( "UTF-8", "1.0" );
+			xml.writeStartElement( "contacts" );
+			while (cursor.hasNext()) marshaller.marshal( cursor.next(), xml );
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.flush();
+		} catch (JAXBException | XMLStreamException e) {
+			throw new IOException("Cannot write contacts", e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package contact.resource;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.ws.rs.core.Response.Status;
+
+import contact.entity.Contact;
+import contact.entity.ItemResult;
+import contact.service.ContactDao;
+
+/**
+ * Saves contacts read from a stream in batches, using
+ * ContactDao.createAll, and keeps a result for each contact.
+ * At most one batch of contacts is held in memory at a time;
+ * only the small result of each item is kept until the end.
+ * <p>
+ * The batch size is set by the system property
+ * <tt>contact.import.batchSize</tt> (default 500).
+ *
+ * @author Natchanon Hongladaromp
+ */
+class ContactImport {
+	/** system property with the number of contacts saved at a time. */
+	static final String BATCH_SIZE_PROPERTY = "contact.import.batchSize";
+	/** status of an item that could not be read; not in Response.Status. */
+	private static final int UNPROCESSABLE = 422;
+
+	private final ContactDao dao;
+	private final int batchSize;
+	private final List<ItemResult> results = new ArrayList<ItemResult>();
+	private final List<Contact> batch;
+	/** results of the contacts in batch, in the same order. */
+	private final List<ItemResult> batchResults;
+
+	/**
+	 * @param dao the DAO to save contacts with
+	 */
+	ContactImport(ContactDao dao) {
+		this.dao = dao;
+		this.batchSize = Math.max(1, Integer.getInteger(BATCH_SIZE_PROPERTY, 500));
+		this.batch = new ArrayList<Contact>(batchSize);
+		this.batchResults = new ArrayList<ItemResult>(batchSize);
+	}
+
+	/**
+	 * Save all contacts from a reader.
+	 * A contact that the reader rejects with IllegalArgumentException
+	 * gets an error result and the import goes on.  If the reader
+	 * throws IllegalStateException, the rest of the input cannot be
+	 * read: the contacts read so far are saved, and the import stops
+	 * with an error result for the item where reading failed.
+	 * @param contacts reader of the contacts to import
+	 * @return result of each item, in input order
+	 */
+	List<ItemResult> run(Iterator<Contact> contacts) {
+		int index = 0;
+		while (true) {
+			Contact contact;
+			try {
+				if (! contacts.hasNext()) break;
+				contact = contacts.next();
+			} catch (IllegalArgumentException e) {
+				results.add(error(index++, UNPROCESSABLE, e.getMessage()));
+				continue;
+			} catch (IllegalStateException e) {
+				String message = e.getCause() == null ? null : e.getCause().getMessage();
+				results.add(error(index, Status.BAD_REQUEST.getStatusCode(), message == null ? e.getMessage() : message));
+				break;
+			}
+			ItemResult result = new ItemResult(index++);
+			results.add(result);
+			batch.add(contact);
+			batchResults.add(result);
+			if (batch.size() == batchSize) flush();
+		}
+		flush();
+		return results;
+	}
+
+	/** Save the pending batch and fill in the results. */
+	private void flush() {
+		if (batch.isEmpty()) return;
+		boolean[] saved = dao.createAll(batch);
+		for (int k = 0; k < saved.length; k++) {
+			Contact contact = batch.get(k);
+			ItemResult result = batchResults.get(k);
+			result.setId(contact.getId());
+			if (saved[k]) {
+				result.setStatus(Status.CREATED.getStatusCode());
+				result.setVersion(contact.getVersion());
+			} else {
+				result.setStatus(Status.CONFLICT.getStatusCode());
+				result.setMessage("Contact " + contact.getId() + " already exists");
+			}
+		}
+		batch.clear();
+		batchResults.clear();
+	}
+
+	private static ItemResult error(int index, int status, String message) {
+		ItemResult result = new ItemResult(index);
+		result.setStatus(status);
+		result.setMessage(message);
+		return result;
+	}
+}
@@ -0,0 +1,53 @@
+package contact.resource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+import contact.entity.Contact;
+import contact.entity.ContactJsonWriter;
+
+/**
+ * Writes lists of contacts as JSON arrays with ContactJsonWriter,
+ * instead of the reflective JSON binding.  Output is streamed in
+ * chunks, so a large list is not built up in memory first.
+ * <p>
+ * The provider is declared for Collection&lt;Contact&gt; rather than Object,
+ * so Jersey prefers it to the general JSON provider for these types.
+ *
+ * @author Natchanon Hongladaromp
+ */
+@Provider
+@Produces( MediaType.APPLICATION_JSON )
+public class ContactJsonProvider implements MessageBodyWriter<Collection<Contact>> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		if (! Collection.class.isAssignableFrom(type) || ! (genericType instanceof ParameterizedType)) return false;
+		Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+		return arguments.length == 1 && arguments[0] instanceof Class
+				&& Contact.class.isAssignableFrom((Class<?>) arguments[0]);
+	}
+
+	@Override
+	public long getSize(Collection<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(Collection<Contact> contacts, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException, WebApplicationException {
+		ContactJsonWriter.writeList(contacts, entityStream);
+	}
+}
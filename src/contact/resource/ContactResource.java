@@ -1,9 +1,17 @@
 package contact.resource;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -14,19 +22,38 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.Variant;
 import javax.xml.bind.JAXBElement;
 
 import org.eclipse.jetty.http.HttpHeader;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 import contact.entity.Contact;
+import contact.entity.ContactBinaryCodec;
+import contact.entity.ContactField;
+import contact.entity.ContactJsonReader;
+import contact.entity.ContactXmlReader;
+import contact.entity.ItemResult;
+import contact.entity.ItemResultList;
+import contact.entity.Operation;
+import contact.entity.OperationList;
 import contact.service.ContactDao;
+import contact.service.DaoFactory;
+import contact.service.Outcome;
 import contact.service.jpa.JpaDaoFactory;
 import contact.service.mem.MemDaoFactory;
 
@@ -34,6 +61,12 @@ import contact.service.mem.MemDaoFactory;
  * ContactResource provides RESTful web resources using JAX-RS
  * annotations to map requests to request handling code,
  * and to inject resources into code.
+ * <p>
+ * Requests that use the DAO are suspended and their DAO work is run
+ * on a DaoExecutor, reads and writes on separate pools, so a slow
+ * DAO doesn't hold request threads.  Anything that needs the request
+ * (URIs, headers, content negotiation) is read before the work is
+ * handed over.
  * 
  * @author Natchanon Hongladaromp 5510546034
  *
@@ -41,29 +74,148 @@ import contact.service.mem.MemDaoFactory;
 @Path("/contacts")
 public class ContactResource {
 
+	/** XML, which is sent if the client accepts XML and JSON equally. */
+	static final String XML_PREFERRED = MediaType.APPLICATION_XML + ";qs=1";
+	/** JSON, which is sent if the client prefers it. */
+	static final String JSON = MediaType.APPLICATION_JSON + ";qs=0.9";
+	/** the compact binary form, which is sent only if the client asks for it. */
+	static final String BINARY = ContactBinaryCodec.MEDIA_TYPE + ";qs=0.8";
+	/** media types that a single contact can be sent as. */
+	private static final List<Variant> CONTACT_VARIANTS =
+			Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE, MediaType.APPLICATION_JSON_TYPE, ContactBinaryProvider.TYPE).build();
+	/** media types that an export can be sent as. */
+	private static final List<Variant> EXPORT_VARIANTS =
+			Variant.mediaTypes(MediaType.APPLICATION_XML_TYPE, ContactExport.NDJSON_TYPE).build();
+
+	/** start time of the server, to tell collection ETags of different runs apart. */
+	static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+	/** system property that selects the DAO: <tt>mem</tt> (default) or <tt>jpa</tt>. */
+	public static final String DAO_PROPERTY = "contact.dao";
+
+	/** number of contacts in a page if the request has a cursor but no limit. */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	/** largest number of contacts in a page. */
+	static final int MAX_PAGE_SIZE = 1000;
+
 	private ContactDao dao;
+	private RepresentationCache cache;
+	private ChangeFeed feed;
 
 	@Context
 	UriInfo uriInfo;
 
 	public ContactResource() {
-		dao = MemDaoFactory.getInstance().getContactDao();
+		dao = daoFactory().getContactDao();
+		cache = RepresentationCache.of(dao);
+		feed = ChangeFeed.of(dao);
+	}
+
+	/**
+	 * Get the factory of the DAO that requests use, set by the
+	 * system property <tt>contact.dao</tt>.
+	 * @return the JPA factory if the property is <tt>jpa</tt>, otherwise the in-memory one
+	 */
+	public static DaoFactory daoFactory() {
+		if("jpa".equalsIgnoreCase(System.getProperty(DAO_PROPERTY))) return DaoFactory.getInstance();
+		return MemDaoFactory.getInstance();
 	}
 
 	/**
-	 * Get contact(s) whose title contains the query string(substring match).
+	 * Get contact(s) whose title contains the query string(substring match),
+	 * as XML, JSON or the binary form of ContactBinaryCodec.
+	 * If a limit or cursor is given, only one page of contacts is returned,
+	 * in order of id, with a Link header (rel="next") to the next page.
+	 * If fields is given, only those fields of each contact (and its id
+	 * and version) are read and sent, in order of id.
+	 * The response has an ETag made from the DAO's modification count,
+	 * and if it matches If-None-Match the response is 304 Not Modified,
+	 * without reading any contacts.
+	 * @param response the suspended request, resumed with contact(s) whose title contains the query string
+	 * @param eTagNM ETag to check If-None-Match
 	 * @param query String to query
-	 * @return contact(s) whose title contains the query string 
+	 * @param limit maximum number of contacts in a page
+	 * @param cursor position to continue from, from the previous page's next link
+	 * @param fields comma separated names of the fields to send
 	 */
 	@GET
-	@Produces( MediaType.APPLICATION_XML )
-	public Response getContacts( @QueryParam("title") String query ) {
-		if(query==null) return getContacts();
+	@Produces( { XML_PREFERRED, JSON, BINARY } )
+	public void getContacts( @Suspended AsyncResponse response, @HeaderParam("If-None-Match") String eTagNM,
+			@QueryParam("title") String query, @QueryParam("limit") Integer limit,
+			@QueryParam("cursor") String cursor, @QueryParam("fields") String fields ) {
+		UriBuilder requestUri = uriInfo.getRequestUriBuilder();
+		DaoExecutor.reads().submit(response, () -> findContacts(eTagNM, query, limit, cursor, fields, requestUri));
+	}
 
-		List<Contact> cts = dao.findByTitle(query);
+	/** Do the work of getContacts. */
+	private Response findContacts( String eTagNM, String query, Integer limit, String cursor, String fields, UriBuilder requestUri ) {
+		Set<ContactField> projection = projection(fields);
+		// read the count before the contacts, so the tag is never newer than the contacts
+		EntityTag tag = collectionTag(dao.getModificationCount());
+		if(eTagNM != null && matches(eTagNM, tag.getValue())) return Response.notModified(tag).build();
 
-		GenericEntity<List<Contact>> entitiies = new GenericEntity<List<Contact>>(cts){};
-		return Response.ok(entitiies).build();
+		ResponseBuilder response;
+		if(limit != null || cursor != null) response = getPage(query, limit, cursor, projection, requestUri);
+		else if(projection != null) response = ok(find(query, 0, Integer.MAX_VALUE, projection));
+		else if(query == null) response = ok(dao.findAll());
+		else response = ok(dao.findByTitle(query));
+		return response.tag(tag).build();
+	}
+
+	/**
+	 * Get one page of contacts, optionally matching a title.
+	 * One more contact than the limit is read to tell if there is a next page.
+	 * @param query String to query, or null for all contacts
+	 * @param limit maximum number of contacts, or null for the default
+	 * @param cursor position to continue from, or null for the first page
+	 * @param fields the fields to send, or null for all fields
+	 * @param requestUri URI of the request, to make the next link from
+	 * @return page of contacts
+	 * @throws BadRequestException if the limit or cursor is not valid
+	 */
+	private ResponseBuilder getPage( String query, Integer limit, String cursor, Set<ContactField> fields, UriBuilder requestUri ) {
+		int size = limit == null ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+		long after = cursor == null ? 0 : afterId(cursor);
+		if(size < 1 || after < 0) throw new BadRequestException();
+
+		List<Contact> cts = find(query, after, size + 1, fields);
+		URI next = null;
+		if(cts.size() > size) {
+			cts = cts.subList(0, size);
+			next = requestUri
+					.replaceQueryParam("cursor", cursor(cts.get(size - 1).getId())).build();
+		}
+		ResponseBuilder response = ok(cts);
+		if(next != null) response.link(next, "next");
+		return response;
+	}
+
+	/**
+	 * Find contacts in order of id, optionally matching a title.
+	 * @param query String to query, or null for all contacts
+	 * @param after only contacts with a larger id are found
+	 * @param limit maximum number of contacts
+	 * @param fields the fields to read, or null for all fields
+	 * @return the contacts
+	 */
+	private List<Contact> find( String query, long after, int limit, Set<ContactField> fields ) {
+		if(fields == null) return query == null ? dao.findAll(after, limit) : dao.findByTitle(query, after, limit);
+		return query == null ? dao.findAll(after, limit, fields) : dao.findByTitle(query, after, limit, fields);
+	}
+
+	/**
+	 * Get the fields named by a fields query parameter.
+	 * @param fields value of the parameter, or null
+	 * @return the fields, or null for all fields
+	 * @throws BadRequestException if a name is not a field of Contact
+	 */
+	private static Set<ContactField> projection( String fields ) {
+		if(fields == null) return null;
+		try {
+			return ContactField.parse(fields);
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
+		}
 	}
 
 	/**
@@ -71,24 +223,82 @@ public class ContactResource {
 	 * @return list of all contacts
 	 */
 	public Response getContacts() {
-		GenericEntity<List<Contact>> entitiies = new GenericEntity<List<Contact>>(dao.findAll()){};
-		return Response.ok(entitiies).build();
+		return ok(dao.findAll()).build();
+	}
+
+	/** Start a response with a list of contacts. */
+	private static ResponseBuilder ok(List<Contact> cts) {
+		GenericEntity<List<Contact>> entitiies = new GenericEntity<List<Contact>>(cts){};
+		return Response.ok(entitiies);
+	}
+
+	/**
+	 * Export all contacts, as XML or as NDJSON (one JSON contact per line).
+	 * Contacts are written as they are read from the DAO, so the
+	 * response starts at once and is sent in chunks.
+	 * The contacts are read and written on the stream executor, so a
+	 * slow client does not hold a thread of the read executor.
+	 * @param response the suspended request, resumed with the stream of all contacts
+	 * @param request the request, to choose the media type
+	 */
+	@GET
+	@Path("export")@Produces( { MediaType.APPLICATION_XML, ContactExport.NDJSON } )
+	public void exportContacts( @Suspended AsyncResponse response, @Context Request request ) {
+		Variant variant = request.selectVariant(EXPORT_VARIANTS);
+		if(variant == null) {
+			response.resume(Response.notAcceptable(EXPORT_VARIANTS).build());
+			return;
+		}
+		MediaType type = variant.getMediaType();
+		DaoExecutor.streams().submit(response, () -> Response.ok(new ContactExport(dao, type), type).build());
+	}
+
+	/**
+	 * Stream changes to contacts as Server-Sent Events, starting after
+	 * the event named by Last-Event-ID if it is given.
+	 * The response stays open; see ChangeFeed for the events.
+	 * @param lastEventId id of the last event the client has seen
+	 * @return stream of change events
+	 */
+	@GET
+	@Path("changes")@Produces( SseFeature.SERVER_SENT_EVENTS )
+	public EventOutput getChanges( @HeaderParam(SseFeature.LAST_EVENT_ID_HEADER) String lastEventId ) {
+		return feed.subscribe(lastEventId);
 	}
 
 	/**
-	 * Get one contact by id.
+	 * Get one contact by id, as XML, JSON or the binary form of ContactBinaryCodec.
+	 * The serialized contact is cached until the contact changes.
+	 * If fields is given, only those fields (and the id and version)
+	 * are sent, taken from the cached contact.
+	 * @param response the suspended request, resumed with the contact
 	 * @param eTagNM ETag to check If-None-Match
 	 * @param id id
-	 * @return contact
+	 * @param fields comma separated names of the fields to send
+	 * @param request the request, to choose the media type
 	 */
 	@GET
-	@Path("{id}")@Produces( MediaType.APPLICATION_XML )
-	public Response getContact( @HeaderParam("If-None-Match") String eTagNM, @PathParam("id") long id ) {
-		
-		Contact contact = dao.find(id);
-		if(contact != null) {
-			if(eTagNM == null || !eTagNM.equals(contact.hashCode()+""))
-				return Response.ok(contact).tag(new EntityTag(contact.hashCode() + "")).build();
+	@Path("{id}")@Produces( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, ContactBinaryCodec.MEDIA_TYPE } )
+	public void getContact( @Suspended AsyncResponse response, @HeaderParam("If-None-Match") String eTagNM,
+			@PathParam("id") long id, @QueryParam("fields") String fields, @Context Request request ) {
+		Variant variant = request.selectVariant(CONTACT_VARIANTS);
+		DaoExecutor.reads().submit(response, () -> findContact(eTagNM, id, fields, variant));
+	}
+
+	/**
+	 * Do the work of getContact.
+	 * @param variant the media type chosen for the response, or null if none is acceptable
+	 */
+	private Response findContact( String eTagNM, long id, String fields, Variant variant ) {
+		Set<ContactField> projection = projection(fields);
+		RepresentationCache.Entry entry = cache.get(id);
+		if(entry != null) {
+			if(eTagNM == null || !matches(eTagNM, entry.getVersion())) {
+				if(variant == null) return Response.notAcceptable(CONTACT_VARIANTS).build();
+				MediaType type = variant.getMediaType();
+				Object body = projection == null ? entry.getBytes(type) : ContactField.project(entry.getContact(), projection);
+				return Response.ok(body, type).tag(etag(entry.getVersion())).build();
+			}
 			else
 				return Response.notModified().build();
 		}
@@ -97,82 +307,326 @@ public class ContactResource {
 
 	/**
 	 * Create a new contact. If contact id is omitted or 0, the server will assign a unique ID and return it as the Location header.
+	 * @param response the suspended request, resumed with the URI location
 	 * @param element contact element
-	 * @param uriInfo uri information
-	 * @return URI location
-	 * @throws URISyntaxException
 	 */
 	@POST
-	@Consumes( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON } )
-	public Response postContact( JAXBElement<Contact> element, @Context UriInfo uriInfo ) {
+	@Consumes( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON, ContactBinaryCodec.MEDIA_TYPE } )
+	public void postContact( @Suspended AsyncResponse response, JAXBElement<Contact> element ) {
+		UriBuilder path = uriInfo.getAbsolutePathBuilder();
+		DaoExecutor.writes().submit(response, () -> createContact(element.getValue(), path));
+	}
 
-		Contact contact = element.getValue();
-		if(dao.find(contact.getId()) == null) {
-			if(dao.save( contact )) {
-				URI uri = uriInfo.getAbsolutePathBuilder().path(""+contact.getId() ).build();
-				return Response.created(uri).tag(new EntityTag(contact.hashCode() + "")).build();
+	/**
+	 * Do the work of postContact.  The contact is only added if its id
+	 * is not taken, checked in the same step as the insert, so of two
+	 * concurrent creates with the same id one gets 409.
+	 * @param path URI of the request, to make the location from
+	 */
+	private Response createContact( Contact contact, UriBuilder path ) {
+		if(dao.createAll( Collections.singletonList(contact) )[0]) {
+			URI uri = path.path(""+contact.getId() ).build();
+			return Response.created(uri).tag(etag(contact.getVersion())).build();
+		}
+		return Response.status(Response.Status.CONFLICT).build();
+	}
+
+	/**
+	 * Create many contacts from one request body: a ContactList XML
+	 * document or NDJSON (one JSON contact per line).  The body is
+	 * read incrementally and contacts are saved in batches.
+	 * Like POST of a single contact, a contact with id 0 gets a new id
+	 * and a contact with an existing id is not saved (status 409).
+	 * The body is read on the stream executor, so a slow client does
+	 * not hold a thread of the write executor.
+	 * @param response the suspended request, resumed with the result of each contact, in the order of the body
+	 * @param body the contacts
+	 * @param headers request headers, to know the format of the body
+	 */
+	@POST
+	@Path("import")
+	@Consumes( { MediaType.APPLICATION_XML, ContactExport.NDJSON } )
+	@Produces( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON } )
+	public void importContacts( @Suspended AsyncResponse response, InputStream body, @Context HttpHeaders headers ) {
+		MediaType type = headers.getMediaType();
+		DaoExecutor.streams().submit(response, () -> importFrom(body, type));
+	}
+
+	/** Do the work of importContacts. */
+	private Response importFrom( InputStream body, MediaType type ) {
+		ContactImport contactImport = new ContactImport(dao);
+		List<ItemResult> results;
+		try {
+			if(ContactExport.NDJSON_TYPE.isCompatible(type)) {
+				try (ContactJsonReader reader = new ContactJsonReader(body)) {
+					results = contactImport.run(reader);
+				}
+			}
+			else {
+				try (ContactXmlReader reader = new ContactXmlReader(body)) {
+					results = contactImport.run(reader);
+				}
 			}
+		} catch (IOException e) {
 			return Response.status(Response.Status.BAD_REQUEST).build();
 		}
-		return Response.status(Response.Status.CONFLICT).build();
+		return Response.ok(new ItemResultList(results)).build();
+	}
+
+	/**
+	 * Apply a list of creates, updates and deletes as one unit of work.
+	 * Each operation has the status it would have as a request of its own:
+	 * 201 for a created contact, 200 for an updated or deleted one,
+	 * 404 if there is no contact, 409 if a contact to create exists,
+	 * 412 if ifMatch is not the contact's version, and 400 if the
+	 * operation is incomplete.  Results of created and updated contacts
+	 * have the new version, which is the contact's ETag.
+	 * @param response the suspended request, resumed with the result of each operation, in order
+	 * @param element the operations
+	 */
+	@POST
+	@Path("batch")
+	@Consumes( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON } )
+	@Produces( { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON } )
+	public void batch( @Suspended AsyncResponse response, JAXBElement<OperationList> element ) {
+		DaoExecutor.writes().submit(response, () -> applyBatch(element.getValue()));
+	}
+
+	/** Do the work of batch. */
+	private Response applyBatch( OperationList list ) {
+		List<Operation> operations = list.getOperations();
+		if(operations == null) operations = Collections.emptyList();
+		Outcome[] outcomes = dao.batch(operations);
+		List<ItemResult> results = new ArrayList<ItemResult>(outcomes.length);
+		for(int k = 0; k < outcomes.length; k++) {
+			Operation op = operations.get(k);
+			ItemResult result = new ItemResult(k);
+			boolean create = op.getMethod() == Operation.Method.POST && op.getContact() != null;
+			result.setId(create ? op.getContact().getId() : op.getId());
+			result.setStatus(status(outcomes[k], op.getMethod()).getStatusCode());
+			if(outcomes[k] == Outcome.DONE && op.getMethod() != Operation.Method.DELETE)
+				result.setVersion(op.getContact().getVersion());
+			results.add(result);
+		}
+		return Response.ok(new ItemResultList(results)).build();
+	}
+
+	/**
+	 * Get the HTTP status for the outcome of an operation.
+	 * @param outcome what happened
+	 * @param method the kind of operation
+	 * @return the status the operation would have as a request of its own
+	 */
+	private static Status status(Outcome outcome, Operation.Method method) {
+		switch(outcome) {
+		case DONE: return method == Operation.Method.POST ? Status.CREATED : Status.OK;
+		case NOT_FOUND: return Status.NOT_FOUND;
+		case EXISTS: return Status.CONFLICT;
+		case VERSION_MISMATCH: return Status.PRECONDITION_FAILED;
+		default: return Status.BAD_REQUEST;
+		}
 	}
 
 	/**
 	 * Update a contact. Only update the attributes supplied in request body.
+	 * If-Match must match the current version if it is given;
+	 * if only If-None-Match is given and it matches, nothing is changed.
+	 * The version is checked by the DAO in the same step as the update,
+	 * so a concurrent write between the check and the update is not lost.
+	 * @param response the suspended request, resumed with the URI location
 	 * @param eTagNM ETag to check If-None-Match
 	 * @param eTagM ETag to check If-Match
 	 * @param element contact element
 	 * @param id id
-	 * @return URI location
-	 * @throws URISyntaxException
 	 */
 	@PUT
 	@Path("{id}")@Produces( MediaType.APPLICATION_XML )
-	public Response updateContact( @HeaderParam("If-None-Match") String eTagNM, @HeaderParam("If-Match") String eTagM, JAXBElement<Contact> element, @PathParam("id") long id) {
-
-		Contact oldContact = dao.find(id);
-		Contact newContact = element.getValue();
-		
-		if(eTagNM != null && !eTagNM.equals(oldContact.hashCode()+"") || (eTagM != null && eTagM.equals(oldContact.hashCode()+"") || (eTagM == null && eTagNM == null))){
-		
-			if(dao.find(id) == null) return Response.status(Response.Status.NOT_FOUND).build();
-			newContact.setId(id);
-	
-			if(newContact.getEmail() == null)
-				newContact.setEmail("");
-			if(newContact.getName() == null)
-				newContact.setName("");
-			if(newContact.getPhoneNumber() == null)
-				newContact.setPhoneNumber("");
-			if(newContact.getTitle() == null)
-				newContact.setTitle("");
-	
-			if(dao.update(newContact)) {
-				URI uri = uriInfo.getAbsolutePathBuilder().path(""+newContact.getId() ).build();
-				return Response.created(uri).tag(new EntityTag(newContact.hashCode() + "")).build();
+	public void updateContact( @Suspended AsyncResponse response, @HeaderParam("If-None-Match") String eTagNM,
+			@HeaderParam("If-Match") String eTagM, JAXBElement<Contact> element, @PathParam("id") long id) {
+		UriBuilder path = uriInfo.getAbsolutePathBuilder();
+		DaoExecutor.writes().submit(response, () -> update(eTagNM, eTagM, element.getValue(), id, path));
+	}
+
+	/**
+	 * Do the work of updateContact.
+	 * @param path URI of the request, to make the location from
+	 */
+	private Response update( String eTagNM, String eTagM, Contact newContact, long id, UriBuilder path ) {
+		newContact.setId(id);
+
+		if(newContact.getEmail() == null)
+			newContact.setEmail("");
+		if(newContact.getName() == null)
+			newContact.setName("");
+		if(newContact.getPhoneNumber() == null)
+			newContact.setPhoneNumber("");
+		if(newContact.getTitle() == null)
+			newContact.setTitle("");
+
+		if(eTagM != null) {
+			for(long version : versions(eTagM)) {
+				if(dao.update(newContact, version)) return updated(newContact, path);
 			}
-			return Response.status(Response.Status.BAD_REQUEST).build();
+			return preconditionFailed(id);
 		}
-		if(eTagM != null && !eTagM.equals(oldContact.hashCode()+""))
-			return Response.status(Status.PRECONDITION_FAILED).build();
-		return Response.notModified().build();
+		if(eTagNM != null) {
+			Contact oldContact = dao.find(id);
+			if(oldContact == null) return Response.status(Response.Status.NOT_FOUND).build();
+			if(matches(eTagNM, oldContact.getVersion())) return Response.notModified().build();
+			// replace only the version that was checked
+			if(dao.update(newContact, oldContact.getVersion())) return updated(newContact, path);
+			return preconditionFailed(id);
+		}
+		if(dao.update(newContact)) return updated(newContact, path);
+		return Response.status(Response.Status.NOT_FOUND).build();
 	}
 
 	/**
 	 * Delete a contact with matching id.
+	 * If-Match must match the current version if it is given.
+	 * @param response the suspended request
 	 * @param eTagM ETag to check If-Match
 	 * @param id id
 	 */
 	@DELETE
 	@Path("{id}")@Produces( MediaType.APPLICATION_XML )
-	public Response deleteContact( @HeaderParam("If-Match") String eTagM, @PathParam("id") long id) {
-		Contact contact = dao.find(id);
-		if(dao.delete(id) && (eTagM == null || eTagM.equals(contact.hashCode()+""))) {
+	public void deleteContact( @Suspended AsyncResponse response, @HeaderParam("If-Match") String eTagM, @PathParam("id") long id) {
+		DaoExecutor.writes().submit(response, () -> delete(eTagM, id));
+	}
+
+	/** Do the work of deleteContact. */
+	private Response delete( String eTagM, long id ) {
+		if(eTagM != null) {
+			for(long version : versions(eTagM)) {
+				if(dao.delete(id, version)) return Response.ok().build();
+			}
+			return preconditionFailed(id);
+		}
+		if(dao.delete(id)) {
 			return Response.ok().build();
 		}
-		if(eTagM != null && !eTagM.equals(contact.hashCode()+""))
-			return Response.status(Status.PRECONDITION_FAILED).build();
 		return Response.status(Response.Status.NOT_FOUND).build();
 	}
-	
+
+	/** Response to a successful update. */
+	private static Response updated(Contact contact, UriBuilder path) {
+		URI uri = path.path(""+contact.getId() ).build();
+		return Response.created(uri).tag(etag(contact.getVersion())).build();
+	}
+
+	/**
+	 * Response to a conditional write that was not done, either because
+	 * there is no contact or because its version did not match.
+	 */
+	private Response preconditionFailed(long id) {
+		if(dao.find(id) == null) return Response.status(Response.Status.NOT_FOUND).build();
+		return Response.status(Status.PRECONDITION_FAILED).build();
+	}
+
+	/**
+	 * Get the strong ETag for a version of a contact.
+	 * @param version version of the contact
+	 * @return ETag
+	 */
+	static EntityTag etag(long version) {
+		return new EntityTag(Long.toString(version));
+	}
+
+	/**
+	 * Get the weak ETag for the state of the whole collection.
+	 * It is weak because it covers every list and search, in any format.
+	 * The server's start time is part of the tag, since the count
+	 * starts again from 0 when the server restarts.
+	 * @param modificationCount the DAO's modification count
+	 * @return ETag
+	 */
+	static EntityTag collectionTag(long modificationCount) {
+		return new EntityTag(EPOCH + "-" + modificationCount, true);
+	}
+
+	/**
+	 * Get the versions named in an If-Match header, to write with.
+	 * <tt>*</tt> gives ContactDao.ANY_VERSION.  ETags that are not
+	 * versions are left out, since they can never match.  Weak ETags
+	 * (W/"...") are left out too, since If-Match uses the strong
+	 * comparison (RFC 7232 section 3.1).
+	 * @param header value of the header
+	 * @return versions named by the header, possibly none
+	 */
+	static long[] versions(String header) {
+		String[] tags = header.split(",");
+		long[] versions = new long[tags.length];
+		int count = 0;
+		for (String tag : tags) {
+			tag = tag.trim();
+			if (tag.equals("*")) return new long[] { ContactDao.ANY_VERSION };
+			if (tag.startsWith("W/")) continue;
+			if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\""))
+				tag = tag.substring(1, tag.length() - 1);
+			try {
+				long version = Long.parseLong(tag);
+				if (version > 0) versions[count++] = version;
+			} catch (NumberFormatException e) {
+				// not one of our ETags
+			}
+		}
+		return Arrays.copyOf(versions, count);
+	}
+
+	/**
+	 * Get the opaque cursor for the page after a contact.
+	 * @param id id of the last contact on a page
+	 * @return cursor for the next page
+	 */
+	static String cursor(long id) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Long.toString(id).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Get the id that a cursor continues after.
+	 * @param cursor cursor from a next link
+	 * @return the id, or -1 if the cursor is not valid
+	 */
+	static long afterId(String cursor) {
+		try {
+			long id = Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII));
+			return id < 0 ? -1 : id;
+		} catch (IllegalArgumentException e) {
+			// bad base64 or not a number
+			return -1;
+		}
+	}
+
+	/**
+	 * Test if an If-None-Match header matches a version.
+	 * The header may be <tt>*</tt> or a list of ETags, quoted or not.
+	 * Weak ETags (W/"...") match the version they name, as the weak
+	 * comparison of If-None-Match allows; use versions for If-Match.
+	 * @param header value of the header
+	 * @param version current version of the contact
+	 * @return true if any ETag in the header matches the version
+	 */
+	static boolean matches(String header, long version) {
+		return matches(header, Long.toString(version));
+	}
+
+	/**
+	 * Test if an If-None-Match header matches the value of an ETag.
+	 * Weak and strong ETags with the same value match, as for If-None-Match.
+	 * @param header value of the header
+	 * @param current value of the current ETag, without quotes
+	 * @return true if any ETag in the header matches
+	 */
+	static boolean matches(String header, String current) {
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*")) return true;
+			if (tag.startsWith("W/")) tag = tag.substring(2);
+			if (tag.length() >= 2 && tag.startsWith("\"") && tag.endsWith("\""))
+				tag = tag.substring(1, tag.length() - 1);
+			if (tag.equals(current)) return true;
+		}
+		return false;
+	}
+
 }
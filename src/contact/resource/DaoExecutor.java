@@ -0,0 +1,240 @@
+package contact.resource;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import contact.ExecutionMode;
+
+/**
+ * Runs the DAO work of requests on a bounded pool of threads, so
+ * request threads are not held while the DAO is busy.  Reads and
+ * writes have separate pools, each with its own threads and queue,
+ * so slow writes can't hold up reads.  When a queue is full the
+ * request gets 503 Service Unavailable with a Retry-After header
+ * instead of waiting.
+ * <p>
+ * The response made by the read and write pools is written to the
+ * client on another thread, so a slow client doesn't hold a DAO
+ * thread.  Those threads are a bounded pool too: while its queue is
+ * full, new requests get 503 before their DAO work is run.  Import and export read or write the client while they use
+ * the DAO, so they have a pool of their own, whose threads also write
+ * the response; a slow client there only holds up other streams.
+ * <p>
+ * The sizes are set by system properties, where pool is
+ * <tt>read</tt>, <tt>write</tt>, <tt>stream</tt> or <tt>response</tt>:
+ * <ul>
+ * <li><tt>contact.executor.</tt><i>pool</i><tt>.threads</tt> -
+ *     number of threads (default 16 for reads, 4 for writes and streams,
+ *     32 for responses)</li>
+ * <li><tt>contact.executor.</tt><i>pool</i><tt>.queue</tt> -
+ *     number of tasks that can wait (default 1000 for reads and responses,
+ *     200 for writes, 20 for streams)</li>
+ * </ul>
+ * The threads are of the ExecutionMode of the server; with virtual
+ * threads the pools still limit how much DAO work runs at once, and
+ * each response gets a virtual thread of its own.
+ * Statistics of each pool are published with JMX; see DaoExecutorMXBean.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class DaoExecutor implements DaoExecutorMXBean {
+	/** prefix of the system properties with the sizes of the pools. */
+	static final String PROPERTY_PREFIX = "contact.executor.";
+	/** seconds a client is asked to wait before retrying a rejected request. */
+	private static final int RETRY_AFTER = 1;
+	/** writes responses of the read and write pools to clients. */
+	private static final ExecutorService RESPONSES = responseExecutor();
+	private static final DaoExecutor READS = new DaoExecutor("read", 16, 1000, RESPONSES);
+	private static final DaoExecutor WRITES = new DaoExecutor("write", 4, 200, RESPONSES);
+	private static final DaoExecutor STREAMS = new DaoExecutor("stream", 4, 20, null);
+
+	private final String name;
+	private final ThreadPoolExecutor pool;
+	/** executor that resumes requests, or null to resume on the pool thread. */
+	private final ExecutorService responses;
+	private final int queueCapacity;
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong runNanos = new AtomicLong();
+
+	private DaoExecutor(String name, int defaultThreads, int defaultQueue, ExecutorService responses) {
+		this.name = name;
+		this.responses = responses;
+		int threads = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + name + ".threads", defaultThreads));
+		this.queueCapacity = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + name + ".queue", defaultQueue));
+		this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), ExecutionMode.get().threadFactory("contact-dao-" + name));
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("contact:type=DaoExecutor,name=" + name));
+		} catch (JMException e) {
+			Logger.getLogger(DaoExecutor.class.getName()).log(Level.WARNING, "Can't publish statistics of " + name + " executor", e);
+		}
+	}
+
+	/** @return the pool for requests that only read contacts */
+	static DaoExecutor reads() {
+		return READS;
+	}
+
+	/** @return the pool for requests that change contacts */
+	static DaoExecutor writes() {
+		return WRITES;
+	}
+
+	/** @return the pool for imports and exports, which read or write the client as they go */
+	static DaoExecutor streams() {
+		return STREAMS;
+	}
+
+	/**
+	 * Make the executor that writes responses: a thread per response
+	 * with virtual threads, otherwise a bounded pool whose idle threads
+	 * stop after a minute.
+	 */
+	private static ExecutorService responseExecutor() {
+		ExecutorService virtual = ExecutionMode.get().newThreadPerTaskExecutor("contact-response");
+		if (virtual != null) return virtual;
+		int threads = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "response.threads", 32));
+		int queue = Math.max(1, Integer.getInteger(PROPERTY_PREFIX + "response.queue", 1000));
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), ExecutionMode.get().threadFactory("contact-response"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/** @return true if the responses of this pool can't be queued now */
+	private boolean responsesFull() {
+		return responses instanceof ThreadPoolExecutor
+				&& ((ThreadPoolExecutor) responses).getQueue().remainingCapacity() == 0;
+	}
+
+	/**
+	 * Run work on the pool and resume a suspended request with its result.
+	 * An exception thrown by the work resumes the request with that
+	 * exception, so a WebApplicationException gives its own status.
+	 * If the queue is full, or the queue of responses is, the request
+	 * is resumed at once with 503.
+	 * @param response the suspended request
+	 * @param work the DAO work, which makes the response
+	 */
+	void submit(final AsyncResponse response, final Callable<Response> work) {
+		if (responsesFull()) {
+			reject(response);
+			return;
+		}
+		final long queued = System.nanoTime();
+		try {
+			pool.execute(() -> {
+				long started = System.nanoTime();
+				waitNanos.addAndGet(started - queued);
+				try {
+					Object result = call(work);
+					if (responses == null) resume(response, result);
+					else resumeLater(response, result);
+				} finally {
+					runNanos.addAndGet(System.nanoTime() - started);
+					completed.incrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			reject(response);
+		}
+	}
+
+	/** Resume a request with 503, asking the client to retry. */
+	private void reject(AsyncResponse response) {
+		rejected.incrementAndGet();
+		response.resume(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER).build());
+	}
+
+	/**
+	 * Resume a request on the response executor.  The DAO work is done,
+	 * so if the queue filled since the request was admitted, the
+	 * request is resumed on this thread rather than lose its result.
+	 */
+	private void resumeLater(AsyncResponse response, Object result) {
+		try {
+			responses.execute(() -> resume(response, result));
+		} catch (RejectedExecutionException e) {
+			resume(response, result);
+		}
+	}
+
+	/** @return the response made by work, or the exception it threw */
+	private static Object call(Callable<Response> work) {
+		try {
+			return work.call();
+		} catch (Throwable e) {
+			return e;
+		}
+	}
+
+	/** Resume a request with a response or an exception, which writes it to the client. */
+	private static void resume(AsyncResponse response, Object result) {
+		if (result instanceof Throwable) response.resume((Throwable) result);
+		else response.resume(result);
+	}
+
+	@Override
+	public int getThreads() {
+		return pool.getMaximumPoolSize();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return pool.getActiveCount();
+	}
+
+	@Override
+	public int getQueueSize() {
+		return pool.getQueue().size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	@Override
+	public double getMeanWaitMillis() {
+		long n = completed.get();
+		return n == 0 ? 0 : waitNanos.get() / 1e6 / n;
+	}
+
+	@Override
+	public double getMeanRunMillis() {
+		long n = completed.get();
+		return n == 0 ? 0 : runNanos.get() / 1e6 / n;
+	}
+
+	@Override
+	public String toString() {
+		return name + " executor";
+	}
+}
@@ -0,0 +1,34 @@
+package contact.resource;
+
+/**
+ * Statistics of a DaoExecutor, readable with JMX under
+ * <tt>contact:type=DaoExecutor,name=read</tt>, <tt>name=write</tt> and <tt>name=stream</tt>.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public interface DaoExecutorMXBean {
+
+	/** @return number of threads that run tasks */
+	public abstract int getThreads();
+
+	/** @return number of tasks running now */
+	public abstract int getActiveCount();
+
+	/** @return number of tasks waiting for a thread */
+	public abstract int getQueueSize();
+
+	/** @return maximum number of waiting tasks; more are rejected */
+	public abstract int getQueueCapacity();
+
+	/** @return number of tasks finished */
+	public abstract long getCompletedCount();
+
+	/** @return number of tasks rejected because the queue was full */
+	public abstract long getRejectedCount();
+
+	/** @return mean time finished tasks waited in the queue, in milliseconds */
+	public abstract double getMeanWaitMillis();
+
+	/** @return mean time finished tasks ran, in milliseconds */
+	public abstract double getMeanRunMillis();
+}
@@ -0,0 +1,174 @@
+package contact.resource;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import contact.entity.Contact;
+import contact.entity.ContactBinaryCodec;
+import contact.entity.ContactJsonWriter;
+import contact.service.ContactDao;
+import contact.service.ContactListener;
+
+/**
+ * Cache of the serialized XML, JSON and binary forms of contacts, with their versions.
+ * A contact is serialized once per version and the bytes are reused
+ * until the contact is changed or deleted through the DAO, so a repeated
+ * GET of the same contact costs a map lookup instead of a marshal.
+ * <p>
+ * The cache listens to the DAO and drops a contact's entry whenever it
+ * changes.  The number of cached contacts is limited by the system
+ * property <tt>contact.cache.size</tt> (default 10000).
+ *
+ * @author Natchanon Hongladaromp
+ */
+class RepresentationCache implements ContactListener {
+	/** system property with the maximum number of contacts to cache. */
+	static final String SIZE_PROPERTY = "contact.cache.size";
+	private static final JAXBContext CONTEXT;
+	/** the cache for the DAO currently used by the resource. */
+	private static RepresentationCache instance;
+
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance( Contact.class );
+		} catch (JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** Cached data for one version of a contact. */
+	static class Entry {
+		private final Contact contact;
+		private volatile byte[] xml;
+		private volatile byte[] json;
+		private volatile byte[] binary;
+
+		Entry(Contact contact) {
+			// copy, so later changes to a managed entity can't leak in
+			this.contact = new Contact(contact);
+		}
+
+		/** @return the cached contact, which must not be changed */
+		Contact getContact() {
+			return contact;
+		}
+
+		/** @return version of the cached contact, used as its ETag */
+		long getVersion() {
+			return contact.getVersion();
+		}
+
+		/**
+		 * Get the serialized contact.
+		 * @param type XML, JSON or binary
+		 * @return the contact serialized in the media type
+		 */
+		byte[] getBytes(MediaType type) {
+			if (ContactBinaryProvider.TYPE.isCompatible(type)) {
+				byte[] bytes = binary;
+				if (bytes == null) binary = bytes = ContactBinaryCodec.toBytes(contact);
+				return bytes;
+			}
+			if (MediaType.APPLICATION_JSON_TYPE.isCompatible(type)) {
+				byte[] bytes = json;
+				if (bytes == null) json = bytes = ContactJsonWriter.toBytes(contact);
+				return bytes;
+			}
+			byte[] bytes = xml;
+			if (bytes == null) xml = bytes = toXml(contact);
+			return bytes;
+		}
+	}
+
+	private final ContactDao dao;
+	private final ConcurrentMap<Long,Entry> entries = new ConcurrentHashMap<Long,Entry>();
+	/** count of changes seen, to avoid caching a contact read before a change. */
+	private final AtomicLong changes = new AtomicLong();
+	private final int maxSize;
+
+	private RepresentationCache(ContactDao dao) {
+		this.dao = dao;
+		this.maxSize = Integer.getInteger(SIZE_PROPERTY, 10000);
+	}
+
+	/**
+	 * Get the cache for a DAO.  A new cache is made if the DAO is
+	 * not the one the current cache listens to.
+	 * @param dao the DAO contacts are read from
+	 * @return cache for the DAO
+	 */
+	static synchronized RepresentationCache of(ContactDao dao) {
+		if (instance == null || instance.dao != dao) {
+			if (instance != null) instance.dao.removeContactListener(instance);
+			instance = new RepresentationCache(dao);
+			dao.addContactListener(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the cached entry for a contact, reading it from the DAO if needed.
+	 * @param id id of the contact
+	 * @return the entry, or null if there is no contact with this id
+	 */
+	Entry get(long id) {
+		Entry entry = entries.get(id);
+		if (entry != null) return entry;
+		long seen = changes.get();
+		Contact contact = dao.find(id);
+		if (contact == null) return null;
+		Entry loaded = new Entry(contact);
+		if (entries.size() >= maxSize) evict();
+		// don't cache it if the contact may have changed since it was read
+		entries.compute(id, (key, current) -> changes.get() == seen ? loaded : current);
+		return loaded;
+	}
+
+	/** Remove some entry to make room for another. */
+	private void evict() {
+		Iterator<Long> ids = entries.keySet().iterator();
+		if (ids.hasNext()) {
+			ids.next();
+			ids.remove();
+		}
+	}
+
+	private void invalidate(long id) {
+		changes.incrementAndGet();
+		entries.remove(id);
+	}
+
+	@Override
+	public void contactCreated(Contact contact) {
+		invalidate(contact.getId());
+	}
+
+	@Override
+	public void contactUpdated(Contact contact) {
+		invalidate(contact.getId());
+	}
+
+	@Override
+	public void contactDeleted(long id) {
+		invalidate(id);
+	}
+
+	private static byte[] toXml(Contact contact) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+			Marshaller marshaller = CONTEXT.createMarshaller();
+			marshaller.marshal(contact, out);
+			return out.toByteArray();
+		} catch (JAXBException e) {
+			throw new IllegalStateException("Cannot marshal contact " + contact.getId(), e);
+		}
+	}
+}
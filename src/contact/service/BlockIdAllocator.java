@@ -0,0 +1,179 @@
+package contact.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An IdAllocator that reserves ids a block at a time from a BlockSource,
+ * such as a table in the database, and hands them out from memory.
+ * Getting an id is one atomic increment; only the thread that finds
+ * the block used up takes a lock, to reserve the next block.
+ * Ids in a reserved block that are not used, for example when the
+ * server stops, are skipped.
+ * <p>
+ * Each server that shares the storage of contacts can have a node id,
+ * which is the high part of the ids it makes: node n makes ids from
+ * n * 2<sup>40</sup> + 1000 up to (n + 1) * 2<sup>40</sup>, so servers
+ * with different node ids never make the same id.  Node 0 makes the
+ * ids of a single server.  Ids below 1000 in each node are left for
+ * clients to choose.  The highest node id is 8191, so all ids are less
+ * than 2<sup>53</sup> and are exact as JavaScript numbers.
+ * <p>
+ * The node id and block size are set by factories with the system
+ * properties <tt>contact.id.node</tt> and <tt>contact.id.blockSize</tt>.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class BlockIdAllocator implements IdAllocator {
+	/** system property for the node id of this server. */
+	public static final String NODE_PROPERTY = "contact.id.node";
+	/** system property for the number of ids reserved at a time. */
+	public static final String BLOCK_SIZE_PROPERTY = "contact.id.blockSize";
+	public static final int DEFAULT_BLOCK_SIZE = 1000;
+	/** number of bits of an id below the node id. */
+	public static final int NODE_SHIFT = 40;
+	/** greatest node id. */
+	public static final int MAX_NODE = (1 << (53 - NODE_SHIFT)) - 1;
+	/** first id made for each node. */
+	public static final long FIRST_ID = 1000;
+
+	/**
+	 * Reserves blocks of ids, so no id is reserved twice.
+	 */
+	public interface BlockSource {
+		/**
+		 * Reserve a block of ids that were never reserved before.
+		 * @param floor the least id the block may start at, which is an id
+		 *     of the node of the allocator
+		 * @param size number of ids in the block
+		 * @return the first id of the block, at least floor
+		 */
+		public abstract long reserve(long floor, int size);
+	}
+
+	/**
+	 * A BlockSource in memory, for a DAO that reserves ids only for itself.
+	 */
+	public static class Counter implements BlockSource {
+		private long next;
+
+		@Override
+		public synchronized long reserve(long floor, int size) {
+			long start = Math.max(next, floor);
+			next = start + size;
+			return start;
+		}
+	}
+
+	/** A reserved block: ids from next (inclusive) to limit (exclusive) are free. */
+	private static final class Block {
+		final AtomicLong next;
+		final long limit;
+
+		Block(long start, long limit) {
+			this.next = new AtomicLong(start);
+			this.limit = limit;
+		}
+	}
+
+	private final int node;
+	private final int blockSize;
+	private final BlockSource source;
+	/** first id after the ids of this node. */
+	private final long end;
+	/** block the ids are taken from, replaced under the lock of this allocator. */
+	private volatile Block block = new Block(0, 0);
+	/** least id of the next block, raised by observed ids.  Guarded by this. */
+	private long floor;
+
+	/**
+	 * Create an allocator of ids for a node.
+	 * @param node the node id, from 0 to MAX_NODE
+	 * @param blockSize number of ids to reserve at a time
+	 * @param source the source of blocks
+	 * @throws IllegalArgumentException if node or blockSize is out of range
+	 */
+	public BlockIdAllocator(int node, int blockSize, BlockSource source) {
+		if (node < 0 || node > MAX_NODE) throw new IllegalArgumentException("Node id must be 0 to " + MAX_NODE + ": " + node);
+		if (blockSize < 1) throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		this.node = node;
+		this.blockSize = blockSize;
+		this.source = source;
+		this.floor = firstId(node);
+		this.end = firstId(node) - FIRST_ID + (1L << NODE_SHIFT);
+	}
+
+	/**
+	 * Create an allocator with the node id and block size set by system properties.
+	 * @param source the source of blocks
+	 */
+	public static BlockIdAllocator fromProperties(BlockSource source) {
+		return new BlockIdAllocator(Integer.getInteger(NODE_PROPERTY, 0),
+				Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE), source);
+	}
+
+	/**
+	 * Get the first id made for a node.
+	 * @param node the node id
+	 */
+	public static long firstId(int node) {
+		return ((long) node << NODE_SHIFT) + FIRST_ID;
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	/**
+	 * @see contact.service.IdAllocator#nextId()
+	 * @throws IllegalStateException if the node has no ids left
+	 */
+	@Override
+	public long nextId() {
+		while (true) {
+			Block current = block;
+			long id = current.next.getAndIncrement();
+			if (id < current.limit) return id;
+			refill(current);
+		}
+	}
+
+	/**
+	 * Reserve the next block, unless another thread did it already.
+	 * @param used the block that was found used up
+	 */
+	private synchronized void refill(Block used) {
+		if (block != used) return;
+		long start = source.reserve(Math.max(floor, used.limit), blockSize);
+		if (start + blockSize > end) throw new IllegalStateException("No ids left for node " + node);
+		block = new Block(start, start + blockSize);
+	}
+
+	/**
+	 * Skip an id in the current block, or keep it out of later blocks.
+	 * Ids of other nodes are ignored.
+	 * @see contact.service.IdAllocator#observe(long)
+	 */
+	@Override
+	public void observe(long id) {
+		if (id < firstId(node) || id >= end) return;
+		Block current = block;
+		skip(current, id);
+		if (id >= current.limit) raiseFloor(id);
+	}
+
+	/**
+	 * Keep an id out of the next block.  The block may have been
+	 * replaced since the caller looked, so skip the id in it too.
+	 */
+	private synchronized void raiseFloor(long id) {
+		floor = Math.max(floor, id + 1);
+		skip(block, id);
+	}
+
+	/** Move the next free id of a block past an id in it. */
+	private static void skip(Block block, long id) {
+		long next = block.next.get();
+		while (next <= id && id < block.limit && ! block.next.compareAndSet(next, id + 1))
+			next = block.next.get();
+	}
+}
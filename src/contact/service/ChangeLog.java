@@ -0,0 +1,105 @@
+package contact.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A bounded log of recent changes to contacts, in the order they
+ * were made.  Each change gets the next sequence number, starting
+ * from 1.  Only the newest changes are kept; when the log is full,
+ * the oldest change is dropped to make room.
+ * <p>
+ * A reader remembers the sequence number of the last change it has
+ * seen and asks for the changes after it.  If some of those have been
+ * dropped, the reader has to start again from the current contacts.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ChangeLog {
+
+	/** Kind of change. */
+	public enum Type { CREATED, UPDATED, DELETED }
+
+	/** One change to a contact. */
+	public static class Change {
+		private final long sequence;
+		private final Type type;
+		private final long id;
+		private final long version;
+
+		Change(long sequence, Type type, long id, long version) {
+			this.sequence = sequence;
+			this.type = type;
+			this.id = id;
+			this.version = version;
+		}
+
+		/** @return position of the change in the log, starting from 1 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/** @return kind of change */
+		public Type getType() {
+			return type;
+		}
+
+		/** @return id of the changed contact */
+		public long getId() {
+			return id;
+		}
+
+		/** @return version of the contact after the change, or 0 for a delete */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	private final Change[] changes;
+	/** sequence number of the newest change, or 0 if there is none. */
+	private long last;
+
+	/**
+	 * @param capacity maximum number of changes to keep
+	 */
+	public ChangeLog(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		this.changes = new Change[capacity];
+	}
+
+	/**
+	 * Add a change, dropping the oldest change if the log is full.
+	 * @param type kind of change
+	 * @param id id of the changed contact
+	 * @param version version of the contact after the change, or 0 for a delete
+	 * @return the change, with its sequence number
+	 */
+	public synchronized Change append(Type type, long id, long version) {
+		Change change = new Change(++last, type, id, version);
+		changes[(int) (last % changes.length)] = change;
+		return change;
+	}
+
+	/**
+	 * @return sequence number of the newest change, or 0 if there is none
+	 */
+	public synchronized long getLastSequence() {
+		return last;
+	}
+
+	/**
+	 * Get the changes after a sequence number.
+	 * @param sequence sequence number of the last change already seen, or 0 for none
+	 * @return the newer changes, oldest first, or null if some of them
+	 *   have been dropped or the sequence number is not in the log yet
+	 */
+	public synchronized List<Change> since(long sequence) {
+		if (sequence == last) return Collections.emptyList();
+		long oldest = Math.max(1, last - changes.length + 1);
+		if (sequence > last || sequence + 1 < oldest) return null;
+		List<Change> newer = new ArrayList<Change>((int) (last - sequence));
+		for (long s = sequence + 1; s <= last; s++) newer.add(changes[(int) (s % changes.length)]);
+		return newer;
+	}
+}
@@ -0,0 +1,23 @@
+package contact.service;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import contact.entity.Contact;
+
+/**
+ * Iterator over saved contacts that reads them from storage as it goes,
+ * instead of loading them all at once.  A cursor may hold resources,
+ * such as a database connection, so it must be closed after use.
+ *
+ * @see ContactDao#findAllCursor()
+ * @author Natchanon Hongladaromp
+ */
+public interface ContactCursor extends Iterator<Contact>, Closeable {
+
+	/**
+	 * Release the resources held by this cursor.
+	 */
+	@Override
+	public abstract void close();
+}
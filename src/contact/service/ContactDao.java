@@ -1,8 +1,11 @@
 package contact.service;
 
 import java.util.List;
+import java.util.Set;
 
 import contact.entity.Contact;
+import contact.entity.ContactField;
+import contact.entity.Operation;
 /**
  * Interface defines the operations required by 
  * a DAO for Contacts.
@@ -11,6 +14,9 @@ import contact.entity.Contact;
  */
 public interface ContactDao {
 
+	/** expected version for a conditional write that matches any saved version. */
+	public static final long ANY_VERSION = -1;
+
 	/** Find a contact by ID in contacts.
 	 * @param the id of contact to find
 	 * @return the matching contact or null if the id is not found
@@ -27,6 +33,38 @@ public interface ContactDao {
 	 */
 	public abstract List<Contact> findAll();
 
+	/**
+	 * Return one page of the persisted contacts, in ascending order
+	 * of id.  To get the next page, pass the id of the last contact
+	 * on this page as afterId.  The cost of a page does not depend on
+	 * how many contacts come before it.
+	 * @param afterId only contacts with a larger id are returned; 0 for the first page
+	 * @param limit maximum number of contacts to return
+	 * @return list of at most limit contacts.  If no contacts, returns an empty list.
+	 */
+	public abstract List<Contact> findAll(long afterId, int limit);
+
+	/**
+	 * Return one page of contacts like findAll(long, int), with only
+	 * some fields read.  The returned contacts are copies with the id,
+	 * version and requested fields set and the other fields null.
+	 * @param afterId only contacts with a larger id are returned; 0 for the first page
+	 * @param limit maximum number of contacts to return
+	 * @param fields the fields to read
+	 * @return list of at most limit contacts.  If no contacts, returns an empty list.
+	 */
+	public abstract List<Contact> findAll(long afterId, int limit, Set<ContactField> fields);
+
+	/**
+	 * Iterate over all the persisted contacts in ascending order
+	 * of id, reading them as the cursor moves, so the whole collection
+	 * can be visited in constant memory.  Contacts saved or deleted
+	 * while iterating may or may not be seen.
+	 * The caller must close the cursor.
+	 * @return cursor over all contacts
+	 */
+	public abstract ContactCursor findAllCursor();
+
 	/**
 	 * Find a contact whose title starts with the  
 	 * string parameter (the way Gmail does).
@@ -37,6 +75,32 @@ public interface ContactDao {
 	 */
 	public abstract List<Contact> findByTitle(String prefix);
 
+	/**
+	 * Return one page of the contacts whose title matches,
+	 * in ascending order of id, like findAll(long, int).
+	 * @param prefix a string containing the start 
+	 * of a contact title.  Must not be null.
+	 * @param afterId only contacts with a larger id are returned; 0 for the first page
+	 * @param limit maximum number of contacts to return
+	 * @return List of at most limit matching contacts. Return an empty list
+	 * if no matches.
+	 */
+	public abstract List<Contact> findByTitle(String prefix, long afterId, int limit);
+
+	/**
+	 * Return one page of the contacts whose title matches, like
+	 * findByTitle(String, long, int), with only some fields read
+	 * as in findAll(long, int, Set).
+	 * @param prefix a string containing the start 
+	 * of a contact title.  Must not be null.
+	 * @param afterId only contacts with a larger id are returned; 0 for the first page
+	 * @param limit maximum number of contacts to return
+	 * @param fields the fields to read
+	 * @return List of at most limit matching contacts. Return an empty list
+	 * if no matches.
+	 */
+	public abstract List<Contact> findByTitle(String prefix, long afterId, int limit, Set<ContactField> fields);
+
 	/**
 	 * Delete a saved contact by id.
 	 * @param id the id of contact to delete. Should be positive.
@@ -44,6 +108,18 @@ public interface ContactDao {
 	 */
 	public abstract boolean delete(long id);
 
+	/**
+	 * Delete a saved contact only if its version is the expected one.
+	 * The version check and the delete are done as one atomic step,
+	 * so no other write can change the contact in between.
+	 * @param id the id of contact to delete. Should be positive.
+	 * @param expectedVersion version the saved contact must have,
+	 *   or ANY_VERSION to delete whatever version is saved
+	 * @return true if contact is deleted, false if there is no such
+	 *   contact or it has a different version.
+	 */
+	public abstract boolean delete(long id, long expectedVersion);
+
 	/**
 	 * Save or replace a contact.
 	 * If the contact.id is 0 then it is assumed to be a
@@ -51,11 +127,26 @@ public interface ContactDao {
 	 * is assigned to the contact.  
 	 * If the contact id is not zero and there is a saved
 	 * contact with same id, then the old contact is replaced.
+	 * The saved contact gets a new version (1 for a new contact,
+	 * otherwise one more than the replaced contact), and the version
+	 * of the contact parameter is set to it.
 	 * @param contact the contact to save or replace.
 	 * @return true if saved successfully
 	 */
 	public abstract boolean save(Contact contact);
 
+	/**
+	 * Save a batch of new contacts, as one unit of work where the
+	 * storage allows it, which is much faster than saving them one
+	 * at a time.  Contacts with id 0 are given a unique id.
+	 * A contact whose id is already saved is not saved (unlike save,
+	 * it does not replace the saved contact).
+	 * Each saved contact gets version 1.
+	 * @param contacts the contacts to save
+	 * @return for each contact in the list, true if it was saved
+	 */
+	public abstract boolean[] createAll(List<Contact> contacts);
+
 	/**
 	 * Update a Contact.  If the contact with same id
 	 * as the update is already in persistent storage,
@@ -63,10 +154,62 @@ public interface ContactDao {
 	 * values in the update (including null values!).
 	 * The id of the update must match the id of a contact
 	 * already persisted.  If not, false is returned.
+	 * The version of the saved contact is incremented, and the
+	 * version of the update parameter is set to the new version.
+	 * An update that would change no field changes nothing: the version
+	 * stays the same, the update parameter gets the saved version, it
+	 * is not counted as a modification and listeners are not told,
+	 * but true is still returned.
 	 * @param update update info for the contact.
 	 * @return true if the update is applied successfully.
 	 */
 	public abstract boolean update(Contact update);
 
+	/**
+	 * Update a Contact only if its saved version is the expected one.
+	 * The version check and the update are done as one atomic step,
+	 * so an update based on a version that was read earlier cannot
+	 * overwrite a change made since then.
+	 * @param update update info for the contact.
+	 * @param expectedVersion version the saved contact must have,
+	 *   or ANY_VERSION to update whatever version is saved
+	 * @return true if the update is applied, false if there is no such
+	 *   contact or it has a different version.
+	 */
+	public abstract boolean update(Contact update, long expectedVersion);
+
+	/**
+	 * Apply a list of creates, updates and deletes in order, as one
+	 * unit of work, which is faster than applying them one at a time.
+	 * Each operation succeeds or fails on its own, as it would if
+	 * it were done alone; a failed operation does not undo the others.
+	 * The contact of each applied POST or PUT gets the new version;
+	 * a PUT that changes nothing is DONE but changes nothing, as for update.
+	 * @param operations the operations to apply
+	 * @return outcome of each operation, in the same order
+	 */
+	public abstract Outcome[] batch(List<Operation> operations);
+
+	/**
+	 * Get the number of writes through this DAO that changed some
+	 * contact.  The count goes up after each change can be read, so
+	 * data read after getting the count is at least as new as the count.
+	 * It can be used to tell if anything changed since an earlier read.
+	 * @return modification count, starting from 0
+	 */
+	public abstract long getModificationCount();
+
+	/**
+	 * Register a listener to be told about every contact that is
+	 * created, updated or deleted through this DAO.
+	 * @param listener the listener to add
+	 */
+	public abstract void addContactListener(ContactListener listener);
+
+	/**
+	 * Stop telling a listener about changes.
+	 * @param listener the listener to remove
+	 */
+	public abstract void removeContactListener(ContactListener listener);
 
 }
\ No newline at end of file
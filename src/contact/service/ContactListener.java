@@ -0,0 +1,34 @@
+package contact.service;
+
+import contact.entity.Contact;
+
+/**
+ * Receives notice of changes made through a ContactDao.
+ * Listeners are called after the change is saved, on the thread that
+ * made the change or on another thread that is making a change, so they
+ * should return quickly.  MemContactDao calls them one at a time, with
+ * the changes of each contact in the order they were made.
+ *
+ * @see ContactDao#addContactListener(ContactListener)
+ * @author Natchanon Hongladaromp
+ */
+public interface ContactListener {
+
+	/**
+	 * Called after a new contact is saved.
+	 * @param contact the contact as saved
+	 */
+	public abstract void contactCreated(Contact contact);
+
+	/**
+	 * Called after a saved contact is replaced or updated.
+	 * @param contact the contact as saved after the change
+	 */
+	public abstract void contactUpdated(Contact contact);
+
+	/**
+	 * Called after a contact is deleted.
+	 * @param id id of the deleted contact
+	 */
+	public abstract void contactDeleted(long id);
+}
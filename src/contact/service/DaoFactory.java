@@ -27,7 +27,7 @@ public abstract class DaoFactory {
 	 * Get a singleton instance of the DaoFactory.
 	 * @return instance of a concrete DaoFactory
 	 */
-	public static DaoFactory getInstance() {
+	public static synchronized DaoFactory getInstance() {
 		if (factory == null) factory = new contact.service.jpa.JpaDaoFactory();
 		return factory;
 	}
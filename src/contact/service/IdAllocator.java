@@ -0,0 +1,28 @@
+package contact.service;
+
+/**
+ * Chooses the ids of new contacts for a ContactDao.
+ * A DAO asks for an id when it saves a contact that has none, and tells
+ * the allocator about each id that a client chose, so that id is not
+ * handed out again.  Implementations must be thread-safe.
+ *
+ * @see BlockIdAllocator
+ * @author Natchanon Hongladaromp
+ */
+public interface IdAllocator {
+
+	/**
+	 * Get an id that this allocator has not returned before.
+	 * The id may still be taken by a contact whose id was chosen by
+	 * a client at the same time, so the DAO must check when it saves.
+	 * @return a new id, greater than 0
+	 */
+	public abstract long nextId();
+
+	/**
+	 * Note an id that was chosen by a client or loaded from storage,
+	 * so nextId does not return it.
+	 * @param id id of a saved contact
+	 */
+	public abstract void observe(long id);
+}
@@ -0,0 +1,20 @@
+package contact.service;
+
+/**
+ * What happened to one operation of a batch.
+ *
+ * @see ContactDao#batch(java.util.List)
+ * @author Natchanon Hongladaromp
+ */
+public enum Outcome {
+	/** the operation was applied. */
+	DONE,
+	/** there is no contact with the id to update or delete. */
+	NOT_FOUND,
+	/** a contact with the id to create already exists. */
+	EXISTS,
+	/** the contact does not have the version the operation requires. */
+	VERSION_MISMATCH,
+	/** the operation is incomplete, such as a PUT without a contact. */
+	INVALID
+}
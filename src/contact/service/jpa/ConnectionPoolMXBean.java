@@ -0,0 +1,32 @@
+package contact.service.jpa;
+
+/**
+ * Usage of an EclipseLink connection pool of the JPA DAO, readable
+ * with JMX under <tt>contact:type=ConnectionPool,name=default</tt>
+ * (connections that write) and <tt>name=read</tt>.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public interface ConnectionPoolMXBean {
+
+	/** @return number of connections the pool keeps open */
+	public abstract int getMinConnections();
+
+	/** @return most connections the pool opens */
+	public abstract int getMaxConnections();
+
+	/** @return number of connections open now */
+	public abstract int getOpenConnections();
+
+	/** @return number of open connections in use now */
+	public abstract int getActiveConnections();
+
+	/** @return number of open connections waiting to be used */
+	public abstract int getIdleConnections();
+
+	/** @return milliseconds a thread waits for a connection before it fails */
+	public abstract int getWaitTimeout();
+
+	/** @return number of prepared statements cached for each connection, 0 if none */
+	public abstract int getStatementCacheSize();
+}
@@ -0,0 +1,112 @@
+package contact.service.jpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+/**
+ * Publishes the usage of the connection pools of an EntityManagerFactory
+ * with JMX.  The numbers are read from the pools when they are asked for.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class ConnectionPoolStats implements ConnectionPoolMXBean {
+	private static final Logger logger = Logger.getLogger(ConnectionPoolStats.class.getName());
+	private final ConnectionPool pool;
+	private final int statementCacheSize;
+
+	private ConnectionPoolStats(ConnectionPool pool, int statementCacheSize) {
+		this.pool = pool;
+		this.statementCacheSize = statementCacheSize;
+	}
+
+	/**
+	 * Publish the pools of an EntityManagerFactory whose session has logged in.
+	 * @param emf the factory
+	 * @return names of the published beans, to unpublish when the factory is closed
+	 */
+	static List<ObjectName> publish(EntityManagerFactory emf) {
+		ServerSession session = (ServerSession) JpaHelper.getServerSession(emf);
+		int statementCacheSize = session.getLogin().shouldCacheAllStatements() ? session.getLogin().getStatementCacheSize() : 0;
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>(session.getConnectionPools().values());
+		if (! pools.contains(session.getReadConnectionPool())) pools.add(session.getReadConnectionPool());
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		List<ObjectName> names = new ArrayList<ObjectName>();
+		for (ConnectionPool pool : pools) {
+			try {
+				ObjectName name = new ObjectName("contact:type=ConnectionPool,name=" + ObjectName.quote(pool.getName()));
+				server.registerMBean(new ConnectionPoolStats(pool, statementCacheSize), name);
+				names.add(name);
+			} catch (JMException e) {
+				logger.log(Level.WARNING, "Can't publish statistics of connection pool " + pool.getName(), e);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Unpublish beans made by publish.
+	 * @param names names returned by publish
+	 */
+	static void unpublish(List<ObjectName> names) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : names) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				logger.warning(e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public int getMinConnections() {
+		return pool.getMinNumberOfConnections();
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return pool.getMaxNumberOfConnections();
+	}
+
+	@Override
+	public int getOpenConnections() {
+		return pool.getTotalNumberOfConnections();
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return Math.max(0, getOpenConnections() - getIdleConnections());
+	}
+
+	@Override
+	public int getIdleConnections() {
+		return pool.getConnectionsAvailable().size();
+	}
+
+	@Override
+	public int getWaitTimeout() {
+		return pool.getWaitTimeout();
+	}
+
+	@Override
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+
+	@Override
+	public String toString() {
+		return pool.getName() + " connection pool";
+	}
+}
@@ -0,0 +1,40 @@
+package contact.service.jpa;
+
+import org.eclipse.persistence.config.CacheIsolationType;
+import org.eclipse.persistence.config.DescriptorCustomizer;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+
+/**
+ * Sets the shared (second-level) cache of contacts; named by
+ * <tt>eclipselink.descriptor.customizer.Contact</tt> in persistence.xml.
+ * The cache keeps the contacts used most recently, up to a fixed number,
+ * so a find of a hot contact does not go to the database.  EclipseLink
+ * puts the changes of each committed transaction in the cache and
+ * removes deleted contacts, so the cache is never older than the database
+ * for changes made through the DAO.  Nothing tells the cache of changes
+ * made any other way, such as SQL run on the database or by another
+ * server; that is safe with the embedded Derby of persistence.xml, which
+ * only one JVM can open.  Set the number of contacts with the system
+ * property <tt>contact.jpa.cache.size</tt>; 0 turns the cache off, as it
+ * should be if the database is ever shared.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ContactCacheCustomizer implements DescriptorCustomizer {
+	/** system property with the most contacts in the cache. */
+	public static final String SIZE_PROPERTY = JpaDaoFactory.PROPERTY_PREFIX + "cache.size";
+	/** default most contacts in the cache. */
+	private static final int SIZE = 10000;
+
+	@Override
+	public void customize(ClassDescriptor descriptor) {
+		int size = Integer.getInteger(SIZE_PROPERTY, SIZE);
+		if (size <= 0) {
+			descriptor.setCacheIsolation(CacheIsolationType.ISOLATED);
+			return;
+		}
+		// a fixed size cache that drops the least recently used contact when full
+		descriptor.useCacheIdentityMap();
+		descriptor.setIdentityMapSize(size);
+	}
+}
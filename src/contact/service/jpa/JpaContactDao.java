@@ -1,17 +1,38 @@
 package contact.service.jpa;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.ScrollableCursor;
 
 import jersey.repackaged.com.google.common.collect.Lists;
 import contact.entity.Contact;
+import contact.entity.ContactField;
+import contact.entity.Operation;
+import contact.service.ContactCursor;
 import contact.service.ContactDao;
+import contact.service.ContactListener;
+import contact.service.IdAllocator;
+import contact.service.Outcome;
 
 /**
  * Data access object for saving and retrieving contacts,
@@ -21,25 +42,113 @@ import contact.service.ContactDao;
  * <tt>
  * dao = DaoFactory.getInstance().getContactDao()
  * </tt>
+ * <p>
+ * An EntityManager is not thread-safe, so each operation uses a
+ * short-lived EntityManager of its own from the shared factory and
+ * closes it when it is done.  Operations that change contacts run in
+ * one transaction, which is committed or rolled back before the
+ * EntityManager is closed, so any number of threads can use the DAO
+ * at once.  Contacts that are returned are detached.
+ * <p>
+ * Contacts found by id come from the shared cache of EclipseLink when
+ * they are in it (see ContactCacheCustomizer), and results of title
+ * searches come from a TitleQueryCache while no contact has changed.
+ * Both caches assume every change goes through this DAO, which holds
+ * with the embedded Derby database, since only one JVM can open it;
+ * so changes are counted in memory.
+ * Other title searches use the trigram TitleIndex, which is changed in
+ * the same transaction as the contacts.
+ * <p>
+ * Ids of new contacts come from an IdAllocator, before the transaction
+ * that saves them begins, so an insert needs no round trip for its id.
  * 
  * @author jim
  */
 public class JpaContactDao implements ContactDao {
-	/** the EntityManager for accessing JPA persistence services. */
-	private final EntityManager em;
+	/** number of rows fetched from the database at a time by a cursor. */
+	private static final int CURSOR_FETCH_SIZE = 500;
+	/** SQLSTATE of an insert of a key that is already saved. */
+	private static final String DUPLICATE_KEY = "23505";
+	/** the factory of EntityManagers for accessing JPA persistence services. */
+	private final EntityManagerFactory emf;
+	/** chooses ids of new contacts, and is told of ids chosen by clients. */
+	private final IdAllocator idAllocator;
+	private final List<ContactListener> listeners = new CopyOnWriteArrayList<ContactListener>();
+	private final AtomicLong modifications = new AtomicLong();
+	/** results of title searches, invalidated by any change to contacts. */
+	private final TitleQueryCache titleCache = new TitleQueryCache();
+
+	/** Work done with an EntityManager. */
+	private interface Work<T> {
+		T run(EntityManager em);
+	}
 
 	/**
-	 * constructor with injected EntityManager to use.
-	 * @param em an EntityManager for accessing JPA services.
+	 * constructor with injected EntityManagerFactory to use.
+	 * @param emf a factory of EntityManagers for accessing JPA services.
+	 * @param idAllocator the allocator of ids of new contacts
 	 */
-	public JpaContactDao(EntityManager em) {
-		this.em = em;
+	public JpaContactDao(EntityManagerFactory emf, IdAllocator idAllocator) {
+		this.emf = emf;
+		this.idAllocator = idAllocator;
 		createTestContact( );
 	}
 
+	/**
+	 * Give a contact without an id a new one, or tell the allocator
+	 * the id a client chose.  This is done outside of a transaction,
+	 * since the allocator may use the database.
+	 * @param contact a contact to be saved
+	 * @throws PersistenceException if no id can be reserved
+	 */
+	private void assignId(Contact contact) {
+		if (contact.getId() == 0) contact.setId(idAllocator.nextId());
+		else idAllocator.observe(contact.getId());
+	}
+
+	/**
+	 * Do work with a new EntityManager, and close it afterwards.
+	 * @param work the work, which should only read
+	 * @return result of the work
+	 */
+	private <T> T read(Work<T> work) {
+		EntityManager em = emf.createEntityManager();
+		try {
+			return work.run(em);
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Do work in a transaction with a new EntityManager.  The
+	 * transaction is committed when the work returns, and is rolled back
+	 * if the work or the commit throws; the EntityManager is always closed.
+	 * @param work the work
+	 * @return result of the work
+	 * @throws PersistenceException if the work or the commit fails,
+	 *     such as RollbackException if the commit fails
+	 */
+	private <T> T write(Work<T> work) {
+		EntityManager em = emf.createEntityManager();
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			T result = work.run(em);
+			tx.commit();
+			return result;
+		} finally {
+			try {
+				if (tx.isActive()) tx.rollback();
+			} finally {
+				em.close();
+			}
+		}
+	}
+
 	/** add contacts for testing. */
 	private void createTestContact( ) {
-		long id = 101; // usually we should let JPA set the id
+		long id = 101; // usually we should let the DAO set the id
 		if (find(id) == null) {
 			Contact test = new Contact("Test contact", "Joe Experimental", "none@testing.com", "0888888888");
 			test.setId(id);
@@ -58,7 +167,7 @@ public class JpaContactDao implements ContactDao {
 	 */
 	@Override
 	public Contact find(long id) {
-		return em.find(Contact.class, id);  // isn't this sooooo much easier than JDBC?
+		return read(em -> em.find(Contact.class, id));  // isn't this sooooo much easier than JDBC?
 	}
 
 	/**
@@ -66,24 +175,271 @@ public class JpaContactDao implements ContactDao {
 	 */
 	@Override
 	public List<Contact> findAll() {
-		Query query = em.createQuery("SELECT c FROM Contact c");
-		List<Contact> contacts = query.getResultList();
+		List<Contact> contacts = read(em -> em.createQuery("SELECT c FROM Contact c", Contact.class).getResultList());
+		return Collections.unmodifiableList(contacts);
+	}
+
+	/**
+	 * Get a page of contacts with a range query on the primary key,
+	 * so the database seeks to the first id instead of skipping rows.
+	 * @see contact.service.ContactDao#findAll(long, int)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit) {
+		List<Contact> contacts = read(em -> {
+			TypedQuery<Contact> query = em.createQuery("SELECT c FROM Contact c WHERE c.id > :after ORDER BY c.id", Contact.class);
+			query.setParameter("after", afterId);
+			query.setMaxResults(limit);
+			return query.getResultList();
+		});
 		return Collections.unmodifiableList(contacts);
 	}
 
+	/**
+	 * Get a page of contacts with a tuple query that selects only
+	 * the requested columns.
+	 * @see contact.service.ContactDao#findAll(long, int, java.util.Set)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit, Set<ContactField> fields) {
+		List<Object[]> rows = read(em -> {
+			TypedQuery<Object[]> query = em.createQuery(select(fields) + " WHERE c.id > :after ORDER BY c.id", Object[].class);
+			query.setParameter("after", afterId);
+			query.setMaxResults(limit);
+			return query.getResultList();
+		});
+		return toContacts(rows, fields);
+	}
+
+	/**
+	 * Read contacts through an EclipseLink scrollable cursor, using an
+	 * EntityManager that stays open, with the JDBC result set, until
+	 * the cursor is closed.  Contacts are read read-only, so they
+	 * are not collected in a persistence context as the cursor moves.
+	 * @see contact.service.ContactDao#findAllCursor()
+	 */
+	@Override
+	public ContactCursor findAllCursor() {
+		final EntityManager cursorEm = emf.createEntityManager();
+		try {
+			Query query = cursorEm.createQuery("SELECT c FROM Contact c ORDER BY c.id");
+			query.setHint(QueryHints.SCROLLABLE_CURSOR, HintValues.TRUE);
+			query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+			query.setHint(QueryHints.JDBC_FETCH_SIZE, CURSOR_FETCH_SIZE);
+			final ScrollableCursor cursor = (ScrollableCursor) query.getSingleResult();
+			return new ContactCursor() {
+				@Override
+				public boolean hasNext() {
+					return cursor.hasNext();
+				}
+
+				@Override
+				public Contact next() {
+					return (Contact) cursor.next();
+				}
+
+				@Override
+				public void close() {
+					try {
+						cursor.close();
+					} finally {
+						cursorEm.close();
+					}
+				}
+			};
+		} catch (RuntimeException ex) {
+			cursorEm.close();
+			throw ex;
+		}
+	}
+
 	/**
 	 * Find contacts whose title contains string
 	 * @see contact.service.ContactDao#findByTitle(java.lang.String)
 	 */
 	@Override
 	public List<Contact> findByTitle(String titlestr) {
-		// LIKE does string match using patterns.
-		Query query = em.createQuery("select c from Contact c where LOWER(c.title) LIKE :title");
-		// % is wildcard that matches anything
-		query.setParameter("title", "%"+titlestr.toLowerCase()+"%");
-		// now why bother to copy one list to another list?
-		java.util.List<Contact> result = Lists.newArrayList( query.getResultList() );
-		return result;
+		String term = TitleIndex.normalize(titlestr);
+		List<Contact> cached = cachedByTitle(term);
+		if (cached != null) return copies(cached);
+		return read(em -> {
+			// now why bother to copy one list to another list?
+			java.util.List<Contact> result = Lists.newArrayList( results(titleQuery(em, term, Long.MIN_VALUE, null), Contact.class) );
+			return result;
+		});
+	}
+
+	/**
+	 * Find a page of contacts whose title contains string,
+	 * using a range query on the primary key like findAll(long, int).
+	 * @see contact.service.ContactDao#findByTitle(java.lang.String, long, int)
+	 */
+	@Override
+	public List<Contact> findByTitle(String titlestr, long afterId, int limit) {
+		String term = TitleIndex.normalize(titlestr);
+		List<Contact> cached = cachedByTitle(term);
+		if (cached != null) return Collections.unmodifiableList(copies(page(cached, afterId, limit)));
+		List<Contact> contacts = read(em -> {
+			Query query = titleQuery(em, term, afterId, null);
+			query.setMaxResults(limit);
+			return results(query, Contact.class);
+		});
+		return Collections.unmodifiableList(contacts);
+	}
+
+	/**
+	 * Find a page of matching contacts with a tuple query that
+	 * selects only the requested columns.
+	 * @see contact.service.ContactDao#findByTitle(java.lang.String, long, int, java.util.Set)
+	 */
+	@Override
+	public List<Contact> findByTitle(String titlestr, long afterId, int limit, Set<ContactField> fields) {
+		String term = TitleIndex.normalize(titlestr);
+		List<Contact> cached = cachedByTitle(term);
+		if (cached != null) {
+			List<Contact> contacts = new ArrayList<Contact>();
+			for (Contact contact : page(cached, afterId, limit)) contacts.add(ContactField.project(contact, fields));
+			return Collections.unmodifiableList(contacts);
+		}
+		List<Object[]> rows = read(em -> {
+			Query query = titleQuery(em, term, afterId, fields);
+			query.setMaxResults(limit);
+			return results(query, Object[].class);
+		});
+		return toContacts(rows, fields);
+	}
+
+	/**
+	 * Make a query for contacts whose title contains a term, in order of id.
+	 * A term of at least 3 characters is looked up in the TitleIndex:
+	 * the contacts filed under one trigram of the term are read in order
+	 * of id from the index, and only their titles are checked.
+	 * A shorter term matches so many titles that a scan of the contacts
+	 * in order of id soon finds a page of them.
+	 * The term matches only itself; % and _ are not wildcards.
+	 * <p>
+	 * The queries are SQL so the parameters are bound.  For a paged JPQL
+	 * query EclipseLink writes the values into the SQL, and Derby plans
+	 * "id > 0" as a scan of the whole table.  The join names its index
+	 * and order so Derby reads the index first even without statistics.
+	 * @param term normalized search term
+	 * @param afterId only contacts with a greater id are selected
+	 * @param fields the fields to select as in select, or null to select contacts
+	 * @return the query, with its parameters set; read it with results
+	 */
+	private static Query titleQuery(EntityManager em, String term, long afterId, Set<ContactField> fields) {
+		String gram = TitleIndex.searchGram(term);
+		StringBuilder sql = new StringBuilder("SELECT ");
+		if (fields == null) {
+			sql.append("c.*");
+		} else {
+			sql.append("c.id, c.version");
+			for (ContactField field : fields) sql.append(", c.").append(field.getProperty());
+		}
+		if (gram == null) {
+			sql.append(" FROM contacts c WHERE c.id > ?");
+		} else {
+			// Derby reads optimizer overrides from comments that end at a newline
+			sql.append(" FROM --DERBY-PROPERTIES joinOrder=FIXED\n")
+				.append(TitleIndex.TABLE).append(" g --DERBY-PROPERTIES index=").append(TitleIndex.GRAM_INDEX).append("\n")
+				.append(", contacts c --DERBY-PROPERTIES joinStrategy=NESTEDLOOP\n")
+				.append(" WHERE g.gram = ? AND c.id = g.contact_id AND g.contact_id > ?");
+		}
+		sql.append(" AND LOWER(c.title) LIKE ? ESCAPE '\\' ORDER BY ").append(gram == null ? "c.id" : "g.contact_id");
+		Query query = fields == null ? em.createNativeQuery(sql.toString(), Contact.class) : em.createNativeQuery(sql.toString());
+		int k = 1;
+		if (gram != null) query.setParameter(k++, gram);
+		query.setParameter(k++, afterId);
+		query.setParameter(k, "%" + TitleIndex.escapeLike(term) + "%");
+		return query;
+	}
+
+	/**
+	 * Get the results of a native query.  JPA has no typed native queries,
+	 * so the caller names the type the query was made for.
+	 * @param query a query from titleQuery
+	 * @param type Contact if the query selects contacts, Object[] if it selects fields
+	 * @return the results
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> results(Query query, Class<T> type) {
+		return query.getResultList();
+	}
+
+	/**
+	 * Get all contacts whose title contains a term from the query cache.
+	 * If they are not cached, they are read from the database and cached,
+	 * unless there are more than the cache holds.
+	 * @param term the normalized search term
+	 * @return the contacts in order of id, which must not be changed,
+	 *     or null if they are not cached
+	 */
+	private List<Contact> cachedByTitle(String term) {
+		if (! titleCache.isEnabled()) return null;
+		// stamp the result with the count before the query, so a change
+		// committed while it runs makes the result stale
+		long stamp = getModificationCount();
+		List<Contact> contacts = titleCache.get(term, stamp);
+		if (contacts == null) {
+			contacts = read(em -> {
+				Query query = titleQuery(em, term, Long.MIN_VALUE, null);
+				// one more than the cache holds, to know if there are too many
+				query.setMaxResults(titleCache.getMaxResults() + 1);
+				return Collections.unmodifiableList(results(query, Contact.class));
+			});
+			titleCache.put(term, stamp, contacts);
+		}
+		return contacts.size() > titleCache.getMaxResults() ? null : contacts;
+	}
+
+	/**
+	 * Copy contacts from the query cache, so a caller that changes
+	 * one does not change the cached result.
+	 */
+	private static List<Contact> copies(List<Contact> contacts) {
+		List<Contact> copies = new ArrayList<Contact>(contacts.size());
+		for (Contact contact : contacts) copies.add(new Contact(contact));
+		return copies;
+	}
+
+	/**
+	 * Get a page of contacts from a list in order of id.
+	 * @return up to limit contacts whose id is more than afterId
+	 */
+	private static List<Contact> page(List<Contact> contacts, long afterId, int limit) {
+		int from = 0;
+		while (from < contacts.size() && contacts.get(from).getId() <= afterId) from++;
+		return contacts.subList(from, Math.min(contacts.size(), from + limit));
+	}
+
+	/**
+	 * Get the start of a query for the id, version and some fields of contacts.
+	 * Scalar columns are not entities, so nothing is added to the persistence context.
+	 * @param fields the fields to select after the id and version
+	 * @return SELECT and FROM clauses, with c as the contact
+	 */
+	private static String select(Set<ContactField> fields) {
+		StringBuilder jpql = new StringBuilder("SELECT c.id, c.version");
+		for (ContactField field : fields) jpql.append(", c.").append(field.getProperty());
+		return jpql.append(" FROM Contact c").toString();
+	}
+
+	/**
+	 * Make contacts from the rows of a query made with select.
+	 * @param rows the rows, with columns in the order of fields
+	 * @param fields the selected fields
+	 * @return the contacts
+	 */
+	private static List<Contact> toContacts(List<Object[]> rows, Set<ContactField> fields) {
+		List<Contact> contacts = new ArrayList<Contact>(rows.size());
+		for (Object[] row : rows) {
+			Contact contact = new Contact((Long) row[0]);
+			contact.setVersion((Long) row[1]);
+			int column = 2;
+			for (ContactField field : fields) field.set(contact, (String) row[column++]);
+			contacts.add(contact);
+		}
+		return Collections.unmodifiableList(contacts);
 	}
 
 	/**
@@ -91,33 +447,216 @@ public class JpaContactDao implements ContactDao {
 	 */
 	@Override
 	public boolean delete(long id) {
-		em.getTransaction().begin();
-		Contact contact = em.find(Contact.class,id);
-		if(contact == null)
+		return delete(id, ANY_VERSION);
+	}
+
+	/**
+	 * Delete a contact using optimistic locking: the DELETE statement
+	 * includes the expected version, so it fails if another writer
+	 * changed the contact after it was read.
+	 * @see contact.service.ContactDao#delete(long, long)
+	 * @throws PersistenceException if the delete fails for another reason
+	 */
+	@Override
+	public boolean delete(long id, long expectedVersion) {
+		try {
+			boolean removed = write(em -> {
+				Contact contact = em.find(Contact.class,id);
+				if (contact == null || ! hasVersion(contact, expectedVersion))
+					return false;
+				em.remove(contact);
+				TitleIndex.remove(em, id);
+				return true;
+			});
+			if (! removed) return false;
+		} catch (PersistenceException ex) {
+			// changed or deleted by another writer; other failures are errors
+			if (! isOptimisticLock(ex)) throw ex;
 			return false;
-		em.remove(contact);
-		em.getTransaction().commit();
+		}
+		modifications.incrementAndGet();
+		for (ContactListener listener : listeners) listener.contactDeleted(id);
 		return true;
-
 	}
 
 	/**
+	 * Save a new contact.  A contact whose id is taken is not saved.
+	 * @return true if it was saved, false if its id is taken
+	 * @throws PersistenceException if it can't be saved for another reason
 	 * @see contact.service.ContactDao#save(contact.entity.Contact)
 	 */
 	@Override
 	public boolean save(Contact contact) {
 		if (contact == null) throw new IllegalArgumentException("Can't save a null contact");
-		EntityTransaction tx = em.getTransaction();
+		boolean newId = contact.getId() == 0;
+		while (true) {
+			try {
+				assignId(contact);
+				write(em -> {
+					em.persist(contact);
+					// insert now, so a taken id fails here and not on the title index
+					em.flush();
+					TitleIndex.add(em, Collections.singletonList(contact));
+					return contact;
+				});
+				break;
+			} catch (PersistenceException ex) {
+				if (newId) {
+					contact.setId(0);
+					contact.setVersion(0);
+				}
+				if (! isDuplicateKey(ex)) throw ex;
+				// the id is taken, found by persist or by the INSERT
+				Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
+				if (! newId) return false;
+				// a client saved a contact with the new id, so try another one
+			}
+		}
+		modifications.incrementAndGet();
+		for (ContactListener listener : listeners) listener.contactCreated(contact);
+		return true;
+	}
+
+	/**
+	 * Save a batch of new contacts in one transaction.  Ids that are
+	 * already saved are found with one query and skipped, and the
+	 * inserts are sent to the database as a JDBC batch
+	 * (see eclipselink.jdbc.batch-writing in persistence.xml).
+	 * If the transaction fails anyway, for example because another
+	 * writer saved one of the ids meanwhile, the contacts are saved
+	 * one at a time instead.
+	 * @throws PersistenceException if a contact can't be saved for a
+	 *     reason other than a taken id.  Listeners are told about the
+	 *     contacts saved before it.
+	 * @see contact.service.ContactDao#createAll(java.util.List)
+	 */
+	@Override
+	public boolean[] createAll(List<Contact> batch) {
+		boolean[] saved = new boolean[batch.size()];
+		boolean[] newId = new boolean[batch.size()];
+		for (int k = 0; k < saved.length; k++) {
+			newId[k] = batch.get(k).getId() == 0;
+			assignId(batch.get(k));
+		}
 		try {
-			tx.begin();
-			em.persist(contact);
-			tx.commit();
-			return true;
-		} catch (EntityExistsException ex) {
+			write(em -> {
+				Set<Long> taken = savedIds(em, batch, newId);
+				for (int k = 0; k < saved.length; k++) {
+					Contact contact = batch.get(k);
+					// a repeated id in the batch is taken by its first occurrence
+					if (! newId[k] && ! taken.add(contact.getId())) continue;
+					em.persist(contact);
+					saved[k] = true;
+				}
+				List<Contact> created = new ArrayList<Contact>();
+				for (int k = 0; k < saved.length; k++)
+					if (saved[k]) created.add(batch.get(k));
+				TitleIndex.add(em, created);
+				return saved;
+			});
+		} catch (PersistenceException ex) {
 			Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
-			if (tx.isActive()) try { tx.rollback(); } catch(Exception e) {}
-			return false;
+			boolean[] tried = saved.clone();
+			Arrays.fill(saved, false);
+			// let a contact that had no id get a new one
+			for (int k = 0; k < saved.length; k++)
+				if (newId[k]) batch.get(k).setId(0);
+			try {
+				for (int k = 0; k < saved.length; k++)
+					if (tried[k]) saved[k] = createOne(batch.get(k));
+			} catch (PersistenceException again) {
+				created(batch, saved);
+				throw again;
+			}
+		}
+		created(batch, saved);
+		return saved;
+	}
+
+	/** Count the contacts of a batch that were saved, and tell listeners about them. */
+	private void created(List<Contact> batch, boolean[] saved) {
+		boolean counted = false;
+		for (int k = 0; k < saved.length; k++) {
+			if (! saved[k]) continue;
+			if (! counted) {
+				modifications.incrementAndGet();
+				counted = true;
+			}
+			for (ContactListener listener : listeners) listener.contactCreated(batch.get(k));
+		}
+	}
+
+	/**
+	 * Get the ids of contacts in a batch that are already saved.
+	 * @param newId for each contact, true if its id is new, so it needs no check
+	 */
+	private static Set<Long> savedIds(EntityManager em, List<Contact> batch, boolean[] newId) {
+		List<Long> ids = new ArrayList<Long>(batch.size());
+		for (int k = 0; k < newId.length; k++)
+			if (! newId[k]) ids.add(batch.get(k).getId());
+		if (ids.isEmpty()) return new HashSet<Long>();
+		TypedQuery<Long> query = em.createQuery("SELECT c.id FROM Contact c WHERE c.id IN :ids", Long.class);
+		query.setParameter("ids", ids);
+		return new HashSet<Long>(query.getResultList());
+	}
+
+	/**
+	 * Save one new contact in a transaction of its own, without telling listeners.
+	 * @return true if it was saved, false if its id is taken
+	 * @throws PersistenceException if it can't be saved for another reason
+	 */
+	private boolean createOne(Contact contact) {
+		boolean newId = contact.getId() == 0;
+		while (true) {
+			try {
+				assignId(contact);
+				boolean created = write(em -> {
+					// the failed batch may have left a version on the contact
+					contact.setVersion(0);
+					if (em.find(Contact.class, contact.getId()) != null)
+						return false;
+					em.persist(contact);
+					em.flush();
+					TitleIndex.add(em, Collections.singletonList(contact));
+					return true;
+				});
+				if (created || ! newId) return created;
+			} catch (PersistenceException ex) {
+				if (! isDuplicateKey(ex)) {
+					if (newId) contact.setId(0);
+					throw ex;
+				}
+				Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
+				if (! newId) return false;
+			}
+			// a client saved a contact with the new id, so try another one
+			contact.setId(0);
+		}
+	}
+
+	/**
+	 * Check whether a write failed because the id of a contact is taken,
+	 * found by persist or by the INSERT.
+	 */
+	private static boolean isDuplicateKey(PersistenceException ex) {
+		for (Throwable cause = ex; cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+			if (cause instanceof EntityExistsException) return true;
+			if (cause instanceof SQLException && DUPLICATE_KEY.equals(((SQLException) cause).getSQLState())) return true;
 		}
+		return false;
+	}
+
+	/**
+	 * Check whether a write failed because the contact was changed or
+	 * deleted by another writer, found by the version check at flush
+	 * or at commit, where it is the cause of a RollbackException.
+	 */
+	private static boolean isOptimisticLock(PersistenceException ex) {
+		for (Throwable cause = ex; cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+			if (cause instanceof OptimisticLockException
+					|| cause instanceof org.eclipse.persistence.exceptions.OptimisticLockException) return true;
+		}
+		return false;
 	}
 
 	/**
@@ -125,14 +664,198 @@ public class JpaContactDao implements ContactDao {
 	 */
 	@Override
 	public boolean update(Contact update) {
-		em.getTransaction().begin();
-		long id = update.getId();
-		Contact contact = em.find(Contact.class,id);
-		if(contact == null)
+		return update(update, ANY_VERSION);
+	}
+
+	/**
+	 * Update a contact using optimistic locking: the update is merged
+	 * with the expected version, and the UPDATE statement includes it,
+	 * so it fails if another writer changed the contact after it was read.
+	 * @see contact.service.ContactDao#update(contact.entity.Contact, long)
+	 * @throws PersistenceException if the update fails for another reason
+	 */
+	@Override
+	public boolean update(Contact update, long expectedVersion) {
+		Contact contact;
+		final boolean[] unchanged = new boolean[1];
+		try {
+			contact = write(em -> {
+				Contact saved = em.find(Contact.class,update.getId());
+				if (saved == null || ! hasVersion(saved, expectedVersion))
+					return null;
+				// merging would write nothing, and the version would stay the same
+				if (saved.hasSameFields(update)) {
+					unchanged[0] = true;
+					return saved;
+				}
+				boolean retitled = ! TitleIndex.normalize(saved.getTitle()).equals(TitleIndex.normalize(update.getTitle()));
+				//update, starting from the expected version so JPA checks and increments it
+				update.setVersion(saved.getVersion());
+				Contact merged = em.merge(update);
+				if (retitled) TitleIndex.replace(em, merged);
+				return merged;
+			});
+		} catch (PersistenceException ex) {
+			// changed or deleted by another writer; other failures are errors
+			if (! isOptimisticLock(ex)) throw ex;
 			return false;
-		//update
-		em.merge(update);
-		em.getTransaction().commit();
+		}
+		if (contact == null) return false;
+		update.setVersion(contact.getVersion());
+		if (unchanged[0]) return true;
+		modifications.incrementAndGet();
+		for (ContactListener listener : listeners) listener.contactUpdated(contact);
 		return true;
 	}
+
+	/**
+	 * Apply the operations in one transaction.  Each operation is
+	 * checked against the contacts as changed by the operations before it,
+	 * so failed operations are simply left out of the transaction.
+	 * Changes are only flushed early for a contact that is changed more than once.
+	 * If the commit fails, for example because another writer changed
+	 * a contact meanwhile, the operations are applied one at a time instead.
+	 * @see contact.service.ContactDao#batch(java.util.List)
+	 */
+	@Override
+	public Outcome[] batch(List<Operation> operations) {
+		Outcome[] outcomes = new Outcome[operations.size()];
+		Contact[] changed = new Contact[outcomes.length];
+		boolean[] newId = new boolean[outcomes.length];
+		Set<Long> changedIds = new HashSet<Long>();
+		try {
+			for (int k = 0; k < outcomes.length; k++) {
+				Operation op = operations.get(k);
+				if (op.getMethod() != Operation.Method.POST || op.getContact() == null) continue;
+				newId[k] = op.getContact().getId() == 0;
+				assignId(op.getContact());
+			}
+			write(em -> {
+				for (int k = 0; k < outcomes.length; k++) {
+					Operation op = operations.get(k);
+					Contact contact = op.getContact();
+					if (op.getMethod() == null || (op.getMethod() != Operation.Method.DELETE && contact == null)) {
+						outcomes[k] = Outcome.INVALID;
+						continue;
+					}
+					if (op.getMethod() == Operation.Method.POST) {
+						if (! newId[k] && em.find(Contact.class, contact.getId()) != null) {
+							outcomes[k] = Outcome.EXISTS;
+							continue;
+						}
+						em.persist(contact);
+						TitleIndex.add(em, Collections.singletonList(contact));
+						changedIds.add(contact.getId());
+						changed[k] = contact;
+						outcomes[k] = Outcome.DONE;
+						continue;
+					}
+					// versions are only incremented when changes are written,
+					// so write earlier changes to this contact before checking it
+					if (! changedIds.add(op.getId())) em.flush();
+					Contact saved = em.find(Contact.class, op.getId());
+					long expectedVersion = op.getIfMatch() == null ? ANY_VERSION : op.getIfMatch();
+					if (saved == null) {
+						outcomes[k] = Outcome.NOT_FOUND;
+					} else if (! hasVersion(saved, expectedVersion)) {
+						outcomes[k] = Outcome.VERSION_MISMATCH;
+					} else if (op.getMethod() == Operation.Method.PUT && saved.hasSameFields(contact)) {
+						// nothing to change; changed[k] stays null
+						contact.setId(op.getId());
+						contact.setVersion(saved.getVersion());
+						outcomes[k] = Outcome.DONE;
+					} else if (op.getMethod() == Operation.Method.PUT) {
+						boolean retitled = ! TitleIndex.normalize(saved.getTitle()).equals(TitleIndex.normalize(contact.getTitle()));
+						contact.setId(op.getId());
+						contact.setVersion(saved.getVersion());
+						changed[k] = em.merge(contact);
+						if (retitled) TitleIndex.replace(em, changed[k]);
+						outcomes[k] = Outcome.DONE;
+					} else {
+						em.remove(saved);
+						TitleIndex.remove(em, op.getId());
+						outcomes[k] = Outcome.DONE;
+					}
+				}
+				return outcomes;
+			});
+		} catch (PersistenceException ex) {
+			Logger.getLogger(this.getClass().getName()).warning(ex.getMessage());
+			return batchOneByOne(operations, newId);
+		}
+		boolean counted = false;
+		for (int k = 0; k < outcomes.length; k++) {
+			if (outcomes[k] != Outcome.DONE) continue;
+			Operation op = operations.get(k);
+			if (op.getMethod() == Operation.Method.PUT) {
+				if (changed[k] == null) continue;
+				op.getContact().setVersion(changed[k].getVersion());
+			}
+			if (! counted) {
+				modifications.incrementAndGet();
+				counted = true;
+			}
+			for (ContactListener listener : listeners) {
+				switch (op.getMethod()) {
+				case POST: listener.contactCreated(changed[k]); break;
+				case PUT: listener.contactUpdated(changed[k]); break;
+				default: listener.contactDeleted(op.getId());
+				}
+			}
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Apply operations one at a time, after the transaction for the whole batch failed.
+	 * @param newId for each operation, true if it is a POST of a contact that had no id
+	 */
+	private Outcome[] batchOneByOne(List<Operation> operations, boolean[] newId) {
+		Outcome[] outcomes = new Outcome[operations.size()];
+		for (int k = 0; k < outcomes.length; k++) {
+			Operation op = operations.get(k);
+			Contact contact = op.getContact();
+			if (contact != null) {
+				// undo what the failed transaction did to the contact
+				if (newId[k]) contact.setId(0);
+				contact.setVersion(0);
+			}
+			if (op.getMethod() == null || (op.getMethod() != Operation.Method.DELETE && contact == null)) {
+				outcomes[k] = Outcome.INVALID;
+			} else if (op.getMethod() == Operation.Method.POST) {
+				outcomes[k] = createAll(Collections.singletonList(contact))[0] ? Outcome.DONE : Outcome.EXISTS;
+			} else {
+				long expectedVersion = op.getIfMatch() == null ? ANY_VERSION : op.getIfMatch();
+				boolean done;
+				if (op.getMethod() == Operation.Method.PUT) {
+					contact.setId(op.getId());
+					done = update(contact, expectedVersion);
+				} else {
+					done = delete(op.getId(), expectedVersion);
+				}
+				if (done) outcomes[k] = Outcome.DONE;
+				else outcomes[k] = find(op.getId()) == null ? Outcome.NOT_FOUND : Outcome.VERSION_MISMATCH;
+			}
+		}
+		return outcomes;
+	}
+
+	private static boolean hasVersion(Contact contact, long expectedVersion) {
+		return expectedVersion == ANY_VERSION || contact.getVersion() == expectedVersion;
+	}
+
+	@Override
+	public long getModificationCount() {
+		return modifications.get();
+	}
+
+	@Override
+	public void addContactListener(ContactListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeContactListener(ContactListener listener) {
+		listeners.remove(listener);
+	}
 }
@@ -1,11 +1,24 @@
 package contact.service.jpa;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
 
+import contact.service.BlockIdAllocator;
 import contact.service.ContactDao;
 import contact.service.DaoFactory;
 
@@ -13,6 +26,35 @@ import contact.service.DaoFactory;
  * JpaDaoFactory is a factory for DAO that use the Java Persistence API (JPA)
  * to persist objects.
  * The factory depends on the configuration information in META-INF/persistence.xml.
+ * The EntityManagerFactory is shared; the DAO makes a short-lived
+ * EntityManager from it for each operation.
+ * <p>
+ * EclipseLink pools the JDBC connections, caches prepared statements
+ * for each connection, and caches contacts.  The sizes in persistence.xml
+ * can be changed with these system properties; the pool sizes are for
+ * both the pool of connections that write and the pool that reads:
+ * <ul>
+ * <li><tt>contact.jpa.url</tt> - JDBC URL of the database, such as
+ *     <tt>jdbc:derby:memory:contacts;create=true</tt> for tests</li>
+ * <li><tt>contact.jpa.pool.min</tt> - connections kept open once opened;
+ *     more are closed when they are released</li>
+ * <li><tt>contact.jpa.pool.max</tt> - most connections open at once</li>
+ * <li><tt>contact.jpa.pool.wait</tt> - milliseconds to wait for a free
+ *     connection before the operation fails</li>
+ * <li><tt>contact.jpa.pool.validate</tt> - check connections after
+ *     errors; see PoolCustomizer</li>
+ * <li><tt>contact.jpa.statementCache</tt> - prepared statements cached
+ *     per connection, 0 for none</li>
+ * <li><tt>contact.jpa.cache.size</tt> - contacts in the shared cache,
+ *     0 for none; see ContactCacheCustomizer</li>
+ * <li><tt>contact.jpa.queryCache.size</tt> and <tt>queryCache.maxResults</tt> -
+ *     title searches cached, and most contacts in a cached result; see TitleQueryCache</li>
+ * </ul>
+ * Usage of the pools is published with JMX; see ConnectionPoolMXBean.
+ * <p>
+ * The DAO chooses ids of new contacts itself, from blocks reserved in
+ * the database; see JpaIdBlocks and the <tt>contact.id.*</tt> properties
+ * of BlockIdAllocator.
  * 
  * @see contact.service.DaoFactory
  * @version 2014.09.19
@@ -20,10 +62,15 @@ import contact.service.DaoFactory;
  */
 public class JpaDaoFactory extends DaoFactory {
 	private static final String PERSISTENCE_UNIT = "contacts";
+	/** prefix of the system properties that tune the persistence unit. */
+	static final String PROPERTY_PREFIX = "contact.jpa.";
+	/** names of the pools set by the pool properties. */
+	private static final String[] POOLS = { "default", "read" };
 	/** instance of the entity DAO */
 	private ContactDao contactDao;
 	private final EntityManagerFactory emf;
-	private EntityManager em;
+	/** JMX names of the pool statistics. */
+	private final List<ObjectName> poolStats;
 	private static Logger logger;
 
 	static {
@@ -31,9 +78,92 @@ public class JpaDaoFactory extends DaoFactory {
 	}
 
 	public JpaDaoFactory() {
-		emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT);
-		em = emf.createEntityManager();
-		contactDao = new JpaContactDao( em );
+		emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, overrides());
+		EntityManager em = emf.createEntityManager();
+		try {
+			migrate(em);
+		} finally {
+			em.close();
+		}
+		migrateTables();
+		// the pools exist once the first EntityManager has logged in
+		poolStats = ConnectionPoolStats.publish(emf);
+		contactDao = new JpaContactDao( emf, BlockIdAllocator.fromProperties(new JpaIdBlocks(emf)) );
+	}
+
+	/**
+	 * Get properties of the persistence unit set by system properties.
+	 * @return properties that replace those in persistence.xml
+	 */
+	private static Map<String,Object> overrides() {
+		Map<String,Object> properties = new HashMap<String,Object>();
+		String url = System.getProperty(PROPERTY_PREFIX + "url");
+		if (url != null) properties.put(PersistenceUnitProperties.JDBC_URL, url);
+		for (String pool : POOLS) {
+			String prefix = PersistenceUnitProperties.CONNECTION_POOL + pool + ".";
+			String min = System.getProperty(PROPERTY_PREFIX + "pool.min");
+			if (min != null) properties.put(prefix + PersistenceUnitProperties.CONNECTION_POOL_MIN, min);
+			String max = System.getProperty(PROPERTY_PREFIX + "pool.max");
+			if (max != null) properties.put(prefix + PersistenceUnitProperties.CONNECTION_POOL_MAX, max);
+			String wait = System.getProperty(PROPERTY_PREFIX + "pool.wait");
+			if (wait != null) properties.put(prefix + PersistenceUnitProperties.CONNECTION_POOL_WAIT, wait);
+		}
+		String statements = System.getProperty(PROPERTY_PREFIX + "statementCache");
+		if (statements != null) {
+			boolean cache = Integer.parseInt(statements) > 0;
+			properties.put(PersistenceUnitProperties.CACHE_STATEMENTS, Boolean.toString(cache));
+			if (cache) properties.put(PersistenceUnitProperties.CACHE_STATEMENTS_SIZE, statements);
+		}
+		return properties;
+	}
+
+	/**
+	 * Update rows saved before contacts had a version column.
+	 * EclipseLink adds the column with NULL values, which would
+	 * never match in an optimistic lock check.
+	 */
+	private static void migrate(EntityManager em) {
+		EntityTransaction tx = em.getTransaction();
+		try {
+			tx.begin();
+			int rows = em.createNativeQuery("UPDATE contacts SET version = 1 WHERE version IS NULL").executeUpdate();
+			tx.commit();
+			if (rows > 0) logger.info("Set version of " + rows + " contacts");
+		} catch (PersistenceException ex) {
+			logger.warning(ex.getMessage());
+			if (tx.isActive()) tx.rollback();
+		}
+	}
+
+	/**
+	 * Create the tables of ids and the title index in a database made
+	 * before they existed, and index the titles of contacts that are
+	 * not indexed.
+	 * This uses a JDBC connection of its own, since it commits as it goes.
+	 */
+	private void migrateTables() {
+		try (Connection connection = connect(emf)) {
+			connection.setAutoCommit(false);
+			JpaIdBlocks.migrate(connection);
+			TitleIndex.migrate(connection);
+		} catch (SQLException ex) {
+			logger.warning("Can't create tables: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Open a JDBC connection to the database of a persistence unit,
+	 * outside its connection pools.
+	 * @param emf factory of the persistence unit
+	 * @return a new connection, which the caller must close
+	 * @throws SQLException if the connection can't be opened
+	 */
+	static Connection connect(EntityManagerFactory emf) throws SQLException {
+		Map<String,Object> properties = emf.getProperties();
+		return DriverManager.getConnection(
+				(String) properties.get(PersistenceUnitProperties.JDBC_URL),
+				(String) properties.get(PersistenceUnitProperties.JDBC_USER),
+				(String) properties.get(PersistenceUnitProperties.JDBC_PASSWORD));
 	}
 
 	@Override
@@ -43,8 +173,8 @@ public class JpaDaoFactory extends DaoFactory {
 
 	@Override
 	public void shutdown() {
+		ConnectionPoolStats.unpublish(poolStats);
 		try {
-			if (em != null && em.isOpen()) em.close();
 			if (emf != null && emf.isOpen()) emf.close();
 		} catch (IllegalStateException ex) {
 			logger.warning(ex.getMessage());
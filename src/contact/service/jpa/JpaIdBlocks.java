@@ -0,0 +1,146 @@
+package contact.service.jpa;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import contact.service.BlockIdAllocator;
+
+/**
+ * Reserves blocks of contact ids in the table <tt>contact_ids</tt>,
+ * which has the next free id of each node.  The node is the one
+ * whose ids contain the floor of the block.  A block is reserved by
+ * moving the next free id past it in a transaction of its own, so
+ * servers that share the database never get the same block, and a
+ * restarted server continues after the ids it reserved before.
+ * <p>
+ * The first block of a node starts after the greatest id of the node
+ * that is saved, so a database that had ids from JPA sequencing
+ * keeps working.  A block also starts after any contact saved in it,
+ * since a client may have chosen an id ahead of the reserved blocks,
+ * on this server or another one.  A client can still save an id in a
+ * block after it is reserved, so the DAO tries another id when the
+ * id it was given is taken.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class JpaIdBlocks implements BlockIdAllocator.BlockSource {
+	/** name of the table of next ids. */
+	static final String TABLE = "contact_ids";
+	private static final Logger logger = Logger.getLogger(JpaIdBlocks.class.getName());
+	private final EntityManagerFactory emf;
+
+	/**
+	 * @param emf factory whose database has the contacts
+	 */
+	JpaIdBlocks(EntityManagerFactory emf) {
+		this.emf = emf;
+	}
+
+	/**
+	 * Reserve a block with a JDBC connection of its own, so the
+	 * reservation is committed even if the transaction that needed
+	 * the id is rolled back.
+	 * @see contact.service.BlockIdAllocator.BlockSource#reserve(long, int)
+	 * @throws PersistenceException if the block can't be reserved
+	 */
+	@Override
+	public long reserve(long floor, int size) {
+		try (Connection connection = JpaDaoFactory.connect(emf)) {
+			connection.setAutoCommit(false);
+			try {
+				long start = reserve(connection, floor, size);
+				connection.commit();
+				return start;
+			} finally {
+				// roll back if reserve or commit failed, so the connection can close
+				connection.rollback();
+			}
+		} catch (SQLException ex) {
+			throw new PersistenceException("Can't reserve ids", ex);
+		}
+	}
+
+	private static long reserve(Connection connection, long floor, int size) throws SQLException {
+		int node = (int) (floor >>> BlockIdAllocator.NODE_SHIFT);
+		boolean created = false;
+		Long next = lockNext(connection, node);
+		if (next == null) {
+			// the first block of a node starts after its saved ids
+			long first = (long) node << BlockIdAllocator.NODE_SHIFT;
+			next = lastSavedId(connection, first, first + (1L << BlockIdAllocator.NODE_SHIFT)) + 1;
+			created = true;
+		}
+		long start = Math.max(floor, next);
+		// skip ids in the block that clients chose, here or on other servers
+		for (long taken; (taken = lastSavedId(connection, start, start + size)) > 0; )
+			start = taken + 1;
+		String sql = created ? "INSERT INTO " + TABLE + " (next_id, node) VALUES (?, ?)"
+				: "UPDATE " + TABLE + " SET next_id = ? WHERE node = ?";
+		try (PreparedStatement write = connection.prepareStatement(sql)) {
+			write.setLong(1, start + size);
+			write.setInt(2, node);
+			write.executeUpdate();
+		}
+		if (created) logger.info("Ids of node " + node + " start at " + start);
+		return start;
+	}
+
+	/**
+	 * Lock the row of a node until commit, and get its next free id.
+	 * @return the next free id, or null if the node has no row yet
+	 */
+	private static Long lockNext(Connection connection, int node) throws SQLException {
+		try (PreparedStatement lock = connection.prepareStatement(
+				"UPDATE " + TABLE + " SET next_id = next_id WHERE node = ?")) {
+			lock.setInt(1, node);
+			if (lock.executeUpdate() == 0) return null;
+		}
+		try (PreparedStatement select = connection.prepareStatement(
+				"SELECT next_id FROM " + TABLE + " WHERE node = ?")) {
+			select.setInt(1, node);
+			try (ResultSet result = select.executeQuery()) {
+				result.next();
+				return result.getLong(1);
+			}
+		}
+	}
+
+	/** Get the greatest saved id from (inclusive) to (exclusive), or 0 if there is none. */
+	private static long lastSavedId(Connection connection, long from, long to) throws SQLException {
+		try (PreparedStatement query = connection.prepareStatement(
+				"SELECT MAX(id) FROM contacts WHERE id >= ? AND id < ?")) {
+			query.setLong(1, from);
+			query.setLong(2, to);
+			try (ResultSet result = query.executeQuery()) {
+				result.next();
+				return result.getLong(1);
+			}
+		}
+	}
+
+	/**
+	 * Create the table if the database doesn't have it.
+	 * @param connection a connection with auto-commit off
+	 * @throws SQLException if the table can't be created
+	 */
+	static void migrate(Connection connection) throws SQLException {
+		DatabaseMetaData meta = connection.getMetaData();
+		try (ResultSet tables = meta.getTables(null, null, TABLE.toUpperCase(Locale.ROOT), null)) {
+			if (tables.next()) return;
+		}
+		try (Statement ddl = connection.createStatement()) {
+			ddl.executeUpdate("CREATE TABLE " + TABLE + " (node INT NOT NULL PRIMARY KEY, next_id BIGINT NOT NULL)");
+		}
+		connection.commit();
+		logger.info("Created table " + TABLE);
+	}
+}
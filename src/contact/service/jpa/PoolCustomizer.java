@@ -0,0 +1,33 @@
+package contact.service.jpa;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.DatabaseLogin;
+import org.eclipse.persistence.sessions.Session;
+
+/**
+ * Sets how pooled connections are validated; named by
+ * <tt>eclipselink.session.customizer</tt> in persistence.xml.
+ * When a statement fails, EclipseLink checks its connection with a
+ * ping statement, drops it from the pool if it is dead, and retries
+ * the statement on a new connection.  Set the system property
+ * <tt>contact.jpa.pool.validate</tt> to <tt>false</tt> to skip the check.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class PoolCustomizer implements SessionCustomizer {
+	/** system property that turns validation of connections on or off. */
+	public static final String VALIDATE_PROPERTY = JpaDaoFactory.PROPERTY_PREFIX + "pool.validate";
+	/** statement used to check that a Derby connection still works. */
+	private static final String PING_SQL = "VALUES 1";
+	/** times a statement is retried on a new connection. */
+	private static final int RETRIES = 2;
+
+	@Override
+	public void customize(Session session) {
+		DatabaseLogin login = (DatabaseLogin) session.getDatasourceLogin();
+		boolean validate = Boolean.parseBoolean(System.getProperty(VALIDATE_PROPERTY, "true"));
+		login.setConnectionHealthValidatedOnError(validate);
+		login.setPingSQL(PING_SQL);
+		login.setQueryRetryAttemptCount(validate ? RETRIES : 0);
+	}
+}
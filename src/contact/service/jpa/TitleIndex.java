@@ -0,0 +1,230 @@
+package contact.service.jpa;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+import contact.entity.Contact;
+
+/**
+ * Trigram index of contact titles in the database, so a title search
+ * looks up rows in an index instead of scanning the contacts table.
+ * The table <tt>contact_title_grams</tt> has a row for each distinct
+ * lowercase 3-character substring (trigram) of each title, with the id
+ * of the contact.  Any title that contains a search term contains every
+ * trigram of the term, so the contacts filed under one trigram of the
+ * term are a superset of the matches, in order of id; the search still
+ * checks each title.  Terms shorter than a trigram can't use the index.
+ * <p>
+ * The rows of a contact are changed with JDBC on the connection of the
+ * transaction that changes the contact, so they are committed or rolled
+ * back with it.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class TitleIndex {
+	/** length of the substrings that are indexed. */
+	static final int GRAM_LENGTH = 3;
+	/** name of the table of trigrams. */
+	static final String TABLE = "contact_title_grams";
+	/** name of the index of the table by trigram and contact id. */
+	static final String GRAM_INDEX = TABLE + "_gram";
+	/** number of contacts indexed in each transaction by migrate. */
+	private static final int MIGRATE_BATCH = 1000;
+	private static final Logger logger = Logger.getLogger(TitleIndex.class.getName());
+
+	private TitleIndex() {
+		// only static methods
+	}
+
+	/**
+	 * Normalize a title or query for case-insensitive matching.
+	 * @param text title or query, may be null
+	 * @return lowercase text, or empty string if text is null
+	 */
+	static String normalize(String text) {
+		return text == null ? "" : text.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Get the distinct trigrams of a title or query.
+	 * @param text title or query, may be null
+	 * @return the trigrams of the normalized text
+	 */
+	static Set<String> grams(String text) {
+		String normalized = normalize(text);
+		Set<String> grams = new HashSet<String>();
+		for (int k = 0; k + GRAM_LENGTH <= normalized.length(); k++)
+			grams.add(normalized.substring(k, k + GRAM_LENGTH));
+		return grams;
+	}
+
+	/**
+	 * Index the titles of new contacts.
+	 * @param em EntityManager of the transaction that saves the contacts
+	 * @param contacts contacts with their ids set
+	 * @throws PersistenceException if the rows can't be inserted
+	 */
+	static void add(EntityManager em, Collection<Contact> contacts) {
+		try {
+			add(em.unwrap(Connection.class), contacts);
+		} catch (SQLException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Remove the title of a contact from the index.
+	 * @param em EntityManager of the transaction that deletes the contact
+	 * @param id id of the contact
+	 * @throws PersistenceException if the rows can't be deleted
+	 */
+	static void remove(EntityManager em, long id) {
+		try {
+			remove(em.unwrap(Connection.class), id);
+		} catch (SQLException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	/**
+	 * Index the new title of a contact in place of its old one.
+	 * @param em EntityManager of the transaction that changes the contact
+	 * @param contact the changed contact
+	 * @throws PersistenceException if the rows can't be changed
+	 */
+	static void replace(EntityManager em, Contact contact) {
+		try {
+			Connection connection = em.unwrap(Connection.class);
+			remove(connection, contact.getId());
+			add(connection, Collections.singletonList(contact));
+		} catch (SQLException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	private static void add(Connection connection, Collection<Contact> contacts) throws SQLException {
+		try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO " + TABLE + " (contact_id, gram) VALUES (?, ?)")) {
+			int rows = 0;
+			for (Contact contact : contacts) {
+				for (String gram : grams(contact.getTitle())) {
+					insert.setLong(1, contact.getId());
+					insert.setString(2, gram);
+					insert.addBatch();
+					rows++;
+				}
+			}
+			if (rows > 0) insert.executeBatch();
+		}
+	}
+
+	private static void remove(Connection connection, long id) throws SQLException {
+		try (PreparedStatement delete = connection.prepareStatement(
+				"DELETE FROM " + TABLE + " WHERE contact_id = ?")) {
+			delete.setLong(1, id);
+			delete.executeUpdate();
+		}
+	}
+
+	/**
+	 * Get the trigram of a term that is used to find candidates.
+	 * This is the last trigram, since words in titles share beginnings
+	 * more often than endings.
+	 * @param term normalized search term
+	 * @return the trigram, or null if the term is too short to use the index
+	 */
+	static String searchGram(String term) {
+		if (term.length() < GRAM_LENGTH) return null;
+		return term.substring(term.length() - GRAM_LENGTH);
+	}
+
+	/**
+	 * Escape the wildcards of a LIKE pattern, so a term matches only itself.
+	 * The pattern needs <tt>ESCAPE '\'</tt>.
+	 */
+	static String escapeLike(String term) {
+		return term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+	}
+
+	/**
+	 * Create the table and its indexes if the database doesn't have
+	 * them, and index the titles of contacts that have none, a few at a
+	 * time in id order.  A database made before the index is indexed
+	 * completely the first time, and an interrupted migration continues
+	 * from the last contact that was indexed.
+	 * @param connection a connection with auto-commit off
+	 * @throws SQLException if the database can't be changed
+	 */
+	static void migrate(Connection connection) throws SQLException {
+		if (! hasTable(connection)) {
+			try (Statement ddl = connection.createStatement()) {
+				ddl.executeUpdate("CREATE TABLE " + TABLE
+						+ " (contact_id BIGINT NOT NULL, gram VARCHAR(" + GRAM_LENGTH + ") NOT NULL,"
+						+ " PRIMARY KEY (contact_id, gram))");
+				// the primary key finds the rows of a contact; this finds the contacts of a trigram in id order
+				ddl.executeUpdate("CREATE INDEX " + GRAM_INDEX + " ON " + TABLE + " (gram, contact_id)");
+			}
+			connection.commit();
+			logger.info("Created table " + TABLE);
+		}
+		long after = lastIndexed(connection);
+		long count = 0;
+		try (PreparedStatement select = connection.prepareStatement(
+				"SELECT id, title FROM contacts WHERE id > ? ORDER BY id FETCH FIRST " + MIGRATE_BATCH + " ROWS ONLY")) {
+			while (true) {
+				List<Contact> batch = new ArrayList<Contact>();
+				select.setLong(1, after);
+				try (ResultSet rows = select.executeQuery()) {
+					while (rows.next()) {
+						Contact contact = new Contact(rows.getLong(1));
+						contact.setTitle(rows.getString(2));
+						batch.add(contact);
+					}
+				}
+				if (batch.isEmpty()) break;
+				add(connection, batch);
+				connection.commit();
+				after = batch.get(batch.size() - 1).getId();
+				count += batch.size();
+				if (count % (100 * MIGRATE_BATCH) == 0) logger.info("Indexed titles of " + count + " contacts");
+			}
+		}
+		connection.commit();
+		if (count > 0) logger.info("Indexed titles of " + count + " contacts");
+	}
+
+	private static boolean hasTable(Connection connection) throws SQLException {
+		DatabaseMetaData meta = connection.getMetaData();
+		try (ResultSet tables = meta.getTables(null, null, TABLE.toUpperCase(Locale.ROOT), null)) {
+			return tables.next();
+		}
+	}
+
+	/**
+	 * Get the id of the last contact whose title was indexed: the
+	 * highest id in the index, or 0 if it is empty.  Contacts after it
+	 * that have a title of 3 or more characters are not indexed yet.
+	 */
+	private static long lastIndexed(Connection connection) throws SQLException {
+		try (Statement query = connection.createStatement();
+				ResultSet result = query.executeQuery("SELECT MAX(contact_id) FROM " + TABLE)) {
+			result.next();
+			return result.getLong(1);
+		}
+	}
+}
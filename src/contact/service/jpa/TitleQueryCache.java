@@ -0,0 +1,111 @@
+package contact.service.jpa;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import contact.entity.Contact;
+
+/**
+ * Results of title searches, keyed by the lowercased search term, so a
+ * popular search does not go to the database.  Each result is all the
+ * contacts whose title contains the term, in order of id.  The cache
+ * holds the most recently used terms, up to a fixed number; a result
+ * with more than a fixed number of contacts is only remembered as too long.
+ * <p>
+ * A result is stamped with the modification count of the DAO when its
+ * query started, and is only used while the count is the same.  So any
+ * change to contacts invalidates every result, including a result whose
+ * query was running while the change was committed.  The count is kept
+ * in memory, so checking it does not touch JDBC.
+ * <p>
+ * The cached contacts are shared, so the DAO gives callers copies.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class TitleQueryCache {
+	/** system property with the most search terms in the cache; 0 turns the cache off. */
+	static final String SIZE_PROPERTY = JpaDaoFactory.PROPERTY_PREFIX + "queryCache.size";
+	/** system property with the most contacts in a result that is cached. */
+	static final String MAX_RESULTS_PROPERTY = JpaDaoFactory.PROPERTY_PREFIX + "queryCache.maxResults";
+
+	/** A cached result. */
+	private static class Result {
+		final long modifications;
+		final List<Contact> contacts;
+
+		Result(long modifications, List<Contact> contacts) {
+			this.modifications = modifications;
+			this.contacts = contacts;
+		}
+	}
+
+	private final int size;
+	private final int maxResults;
+	/** results in order of use, least recently used first; guarded by this. */
+	private final Map<String,Result> results;
+
+	/**
+	 * Make a cache with the sizes set by system properties.
+	 */
+	TitleQueryCache() {
+		this(Integer.getInteger(SIZE_PROPERTY, 1000), Integer.getInteger(MAX_RESULTS_PROPERTY, 1000));
+	}
+
+	/**
+	 * @param size most search terms in the cache, 0 for none
+	 * @param maxResults most contacts in a result that is cached
+	 */
+	TitleQueryCache(final int size, int maxResults) {
+		this.size = size;
+		this.maxResults = maxResults;
+		this.results = new LinkedHashMap<String,Result>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Result> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/** @return true if results can be cached */
+	boolean isEnabled() {
+		return size > 0;
+	}
+
+	/** @return most contacts in a result that is cached */
+	int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * Get the cached result of a search.
+	 * @param term the lowercased search term
+	 * @param modifications the modification count of the DAO now
+	 * @return the contacts, which must not be changed, or null if not cached
+	 */
+	synchronized List<Contact> get(String term, long modifications) {
+		Result result = results.get(term);
+		if (result == null) return null;
+		if (result.modifications != modifications) {
+			results.remove(term);
+			return null;
+		}
+		return result.contacts;
+	}
+
+	/**
+	 * Cache the result of a search.  A result that is too long is
+	 * replaced by a list of nulls of the same size that takes no memory,
+	 * so the term is known to have too many results without querying it again.
+	 * @param term the lowercased search term
+	 * @param modifications the modification count of the DAO when the query started
+	 * @param contacts all contacts that match in order of id, or the first
+	 *     maxResults + 1 of them
+	 */
+	synchronized void put(String term, long modifications, List<Contact> contacts) {
+		if (size <= 0) return;
+		if (contacts.size() > maxResults) contacts = Collections.nCopies(contacts.size(), null);
+		results.put(term, new Result(modifications, contacts));
+	}
+}
@@ -0,0 +1,147 @@
+package contact.service.mem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import contact.entity.Contact;
+
+/**
+ * Compact binary snapshot of contacts, read through memory-mapped buffers.
+ * <p>
+ * The file starts with a header: magic number, format version,
+ * number of records and offset where the records end.  Then come the records,
+ * each holding its length, the contact id and version, and the four
+ * string fields as a length (-1 for null) followed by UTF-8 bytes.
+ * <p>
+ * Version 1 files have no contact version in the records.  Version 1 and 2
+ * files end with an index of ids and record offsets that nothing reads;
+ * version 3 stops writing it, and the end offset in the header lets
+ * all three versions be loaded the same way.
+ * <p>
+ * All numbers are big-endian.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class BinarySnapshot implements SnapshotFormat {
+	private static final int MAGIC = 0x43545331; // "CTS1"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 24;
+	/** largest region of the file mapped at once. */
+	private static final long MAX_REGION = 1L << 30;
+
+	@Override
+	public long write(Iterable<Contact> contacts, File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		File tempFile = new File( file.getPath() + ".tmp" );
+		long count = 0;
+		long offset = HEADER_SIZE;
+		try (FileOutputStream fileOut = new FileOutputStream( tempFile )) {
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fileOut, 1 << 16 ) );
+			out.write( new byte[HEADER_SIZE] ); // filled in after the records are written
+			for (Contact contact : contacts) {
+				count++;
+				byte[][] fields = {
+					bytes(contact.getTitle()), bytes(contact.getName()),
+					bytes(contact.getEmail()), bytes(contact.getPhoneNumber())
+				};
+				int length = 16;
+				for (byte[] field : fields) length += 4 + (field == null ? 0 : field.length);
+				out.writeInt( length );
+				out.writeLong( contact.getId() );
+				out.writeLong( contact.getVersion() );
+				for (byte[] field : fields) {
+					if (field == null) {
+						out.writeInt( -1 );
+					} else {
+						out.writeInt( field.length );
+						out.write( field );
+					}
+				}
+				offset += 4 + length;
+			}
+			out.flush();
+			ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+			header.putInt( MAGIC ).putInt( VERSION ).putLong( count ).putLong( offset );
+			header.flip();
+			fileOut.getChannel().write( header, 0 );
+			fileOut.getFD().sync();
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file.length();
+	}
+
+	@Override
+	public long read(File file, MemContactDao dao) throws IOException {
+		try (FileChannel channel = new RandomAccessFile( file, "r" ).getChannel()) {
+			ByteBuffer header = readHeader( channel );
+			int version = header.getInt( 4 );
+			long count = header.getLong( 8 );
+			long end = header.getLong( 16 );
+			long regionStart = HEADER_SIZE;
+			MappedByteBuffer region = map( channel, regionStart, end );
+			for (long k = 0; k < count; k++) {
+				if (region.remaining() < 4 || region.remaining() < 4 + region.getInt( region.position() )) {
+					// the next record runs past the end of this region
+					regionStart += region.position();
+					region = map( channel, regionStart, end );
+				}
+				dao.restore( readRecord( region, version ) );
+			}
+			return count;
+		}
+	}
+
+	private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+		readFully( channel, header, 0 );
+		if (header.getInt( 0 ) != MAGIC || header.getInt( 4 ) < 1 || header.getInt( 4 ) > VERSION)
+			throw new IOException("Not a binary contact snapshot");
+		return header;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read( buffer, position + buffer.position() );
+			if (n < 0) throw new IOException("Snapshot is truncated");
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+		return channel.map( FileChannel.MapMode.READ_ONLY, start, Math.min( end - start, MAX_REGION ) );
+	}
+
+	/** Read the record at the buffer's position and move past it. */
+	private static Contact readRecord(ByteBuffer buffer, int formatVersion) {
+		buffer.getInt(); // record length
+		Contact contact = new Contact( buffer.getLong() );
+		contact.setVersion( formatVersion == 1 ? 1 : buffer.getLong() );
+		contact.setTitle( readString(buffer) );
+		contact.setName( readString(buffer) );
+		contact.setEmail( readString(buffer) );
+		contact.setPhoneNumber( readString(buffer) );
+		return contact;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	private static byte[] bytes(String value) {
+		return value == null ? null : value.getBytes( StandardCharsets.UTF_8 );
+	}
+}
@@ -1,28 +1,87 @@
 package contact.service.mem;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 import contact.entity.Contact;
+import contact.entity.ContactField;
+import contact.entity.Operation;
+import contact.service.BlockIdAllocator;
+import contact.service.ContactCursor;
 import contact.service.ContactDao;
+import contact.service.ContactListener;
+import contact.service.IdAllocator;
+import contact.service.Outcome;
 
 /**
  * Data access object for saving and retrieving contacts.
- * This DAO uses an in-memory list of person.
+ * This DAO keeps contacts in memory, in a concurrent map keyed by id,
+ * so find, save and delete take constant time and can be called
+ * from many request threads at once without a global lock.
  * Use DaoFactory to get an instance of this class, such as:
  * dao = DaoFactory.getInstance().getContactDao()
- * 
+ *
  * @author jim
  */
 public class MemContactDao implements ContactDao {
-	private List<Contact> contacts;
-	private AtomicLong nextId;
+	/** initial capacity of the map, large enough to avoid rehashing small data sets. */
+	private static final int INITIAL_CAPACITY = 1024;
+	private final ConcurrentMap<Long,Contact> contacts;
+	/** chooses ids of new contacts, and is told of ids chosen by clients. */
+	private final IdAllocator idAllocator;
+	/** trigram index of titles, changed under the map's lock for each id. */
+	private final TitleIndex titleIndex;
+	/** saved ids in ascending order for paging, changed under the map's lock for each id. */
+	private final NavigableSet<Long> ids;
+	/** log of changes, or null if changes are not logged. */
+	private volatile WriteAheadLog log;
+	/**
+	 * Writers hold the read lock while they change the map and append
+	 * to the log, so the log can be rotated (with the write lock) at a
+	 * point where every change before it is visible in the map.
+	 */
+	private final ReadWriteLock logLock = new ReentrantReadWriteLock();
+	private final List<ContactListener> listeners = new CopyOnWriteArrayList<ContactListener>();
+	/**
+	 * Calls to listeners, queued under the per-id lock that applies each
+	 * change, so the changes of one contact are queued in the order of
+	 * their versions.  They are made by one thread at a time, in order.
+	 */
+	private final Queue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+	private final Object dispatchLock = new Object();
+	private final AtomicLong modifications = new AtomicLong();
 
 	public MemContactDao() {
-		contacts = new ArrayList<Contact>();
-		nextId = new AtomicLong(1000L);
+		this(new BlockIdAllocator(0, BlockIdAllocator.DEFAULT_BLOCK_SIZE, new BlockIdAllocator.Counter()));
+	}
+
+	/**
+	 * Create a DAO that gets the ids of new contacts from an allocator.
+	 * @param idAllocator the allocator of ids
+	 */
+	public MemContactDao(IdAllocator idAllocator) {
+		contacts = new ConcurrentHashMap<Long,Contact>(INITIAL_CAPACITY);
+		titleIndex = new TitleIndex();
+		ids = new ConcurrentSkipListSet<Long>();
+		this.idAllocator = idAllocator;
 		//createTestContact(1);
 		//createTestContact(2);
 		//createTestContact(3);
@@ -32,7 +91,43 @@ public class MemContactDao implements ContactDao {
 	private void createTestContact(long id) {
 		Contact test = new Contact("Test contact", "Joe Experimental", "none@testing.com","0888888888");
 		test.setId(id);
-		contacts.add(test);
+		save(test);
+	}
+
+	/**
+	 * Log every change made from now on.  Each write appends its
+	 * record under the same per-id lock that applies the change,
+	 * so records for one contact are logged in the order applied.
+	 * The record is appended before the map and indexes are changed,
+	 * so a change that can't be logged (after the log is closed)
+	 * changes nothing.
+	 * @param log the log to append to, or null to stop logging
+	 */
+	void setWriteAheadLog(WriteAheadLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Switch the log to a new file, at a moment when no change is
+	 * half done.  Used when taking a snapshot.
+	 * @throws IOException if the log cannot be rotated
+	 */
+	void rotateLog() throws IOException {
+		logLock.writeLock().lock();
+		try {
+			if (log != null) log.rotate();
+		} finally {
+			logLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a live, read-only view of the saved contacts for snapshots.
+	 * Iteration is weakly consistent and does not block writers.
+	 * @return view of all contacts
+	 */
+	Collection<Contact> contacts() {
+		return Collections.unmodifiableCollection(contacts.values());
 	}
 
 	/** Find a contact by ID in contacts.
@@ -40,13 +135,66 @@ public class MemContactDao implements ContactDao {
 	 * @return the matching contact or null if the id is not found
 	 */
 	public Contact find(long id) {
-		for(Contact c : contacts) 
-			if (c.getId() == id) return c;
-		return null;
+		return contacts.get(id);
 	}
 
+	/**
+	 * Return a copy of all contacts.  Iteration over the map is
+	 * weakly consistent, so this is safe while other threads write.
+	 */
 	public List<Contact> findAll() {
-		return java.util.Collections.unmodifiableList(contacts);
+		return Collections.unmodifiableList(new ArrayList<Contact>(contacts.values()));
+	}
+
+	/**
+	 * Return a page of contacts, walking the ordered index of ids
+	 * from the first id after afterId.
+	 * @see contact.service.ContactDao#findAll(long, int)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit) {
+		return page(ids.tailSet(afterId, false), "", limit);
+	}
+
+	/**
+	 * Return a page of contacts, copying only the requested fields.
+	 * @see contact.service.ContactDao#findAll(long, int, java.util.Set)
+	 */
+	@Override
+	public List<Contact> findAll(long afterId, int limit, Set<ContactField> fields) {
+		return project(findAll(afterId, limit), fields);
+	}
+
+	/**
+	 * Iterate over the ordered index of ids.  The iteration is weakly
+	 * consistent and holds no resources, so closing does nothing.
+	 * @see contact.service.ContactDao#findAllCursor()
+	 */
+	@Override
+	public ContactCursor findAllCursor() {
+		final Iterator<Long> itr = ids.iterator();
+		return new ContactCursor() {
+			private Contact next;
+
+			@Override
+			public boolean hasNext() {
+				// skip ids of contacts deleted since they were indexed
+				while (next == null && itr.hasNext()) next = contacts.get(itr.next());
+				return next != null;
+			}
+
+			@Override
+			public Contact next() {
+				if (! hasNext()) throw new NoSuchElementException();
+				Contact c = next;
+				next = null;
+				return c;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
 	}
 
 	/**
@@ -55,71 +203,436 @@ public class MemContactDao implements ContactDao {
 	 * @return true if contact is deleted, false otherwise.
 	 */
 	public boolean delete(long id) {
-		for(int k=0; k<contacts.size(); k++) {
-			if (contacts.get(k).getId() == id) {
-				contacts.remove(k);
-				return true;
-			}
+		return delete(id, ANY_VERSION);
+	}
+
+	/**
+	 * Delete a saved contact if it has the expected version.
+	 * The version is checked under the same per-id lock that removes it.
+	 * @see contact.service.ContactDao#delete(long, long)
+	 */
+	@Override
+	public boolean delete(long id, long expectedVersion) {
+		final long[] sequence = new long[1];
+		final WriteAheadLog wal = lockLog();
+		Outcome outcome;
+		try {
+			outcome = applyDelete(id, expectedVersion, wal, sequence);
+		} finally {
+			logLock.readLock().unlock();
 		}
-		return false;
+		if (outcome != Outcome.DONE) return false;
+		sync(wal, sequence[0]);
+		modifications.incrementAndGet();
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Delete a contact if it has the expected version.
+	 * The caller must hold the log lock, and sync and dispatch events.
+	 * @param sequence receives the sequence number of the log record
+	 * @return DONE, NOT_FOUND or VERSION_MISMATCH
+	 */
+	private Outcome applyDelete(long id, long expectedVersion, WriteAheadLog wal, long[] sequence) {
+		final Outcome[] outcome = { Outcome.NOT_FOUND };
+		contacts.computeIfPresent(id, (key, old) -> {
+			if (expectedVersion != ANY_VERSION && old.getVersion() != expectedVersion) {
+				outcome[0] = Outcome.VERSION_MISMATCH;
+				return old;
+			}
+			// log first: if the log is closed nothing is changed
+			sequence[0] = wal == null ? 0 : wal.logDelete(key);
+			titleIndex.remove(key, old.getTitle());
+			ids.remove(key);
+			queueEvent(listener -> listener.contactDeleted(key));
+			outcome[0] = Outcome.DONE;
+			return null;
+		});
+		return outcome[0];
 	}
 
 	/**
 	 * Save or replace a contact.
 	 * If the contact.id is 0 then it is assumed to be a
 	 * new (not saved) contact.  In this case a unique id
-	 * is assigned to the contact.  
+	 * is assigned to the contact.
 	 * If the contact.id is not zero and the contact already
 	 * exists in saved contacts, the old contact is replaced.
 	 * @param contact the contact to save or replace.
 	 * @return true if saved successfully
 	 */
 	public boolean save(Contact contact) {
-		if (contact.getId() == 0) {
-			contact.setId( getUniqueId() );
-			return contacts.add(contact);
+		final long[] sequence = new long[1];
+		final WriteAheadLog wal = lockLog();
+		try {
+			if (contact.getId() == 0) {
+				insertNew(contact, wal, sequence);
+			} else {
+				idAllocator.observe(contact.getId());
+				contacts.compute(contact.getId(), (id, old) -> {
+					contact.setVersion(old == null ? 1 : old.getVersion() + 1);
+					sequence[0] = wal == null ? 0 : wal.logPut(contact);
+					titleIndex.replace(id, old == null ? null : old.getTitle(), contact.getTitle());
+					ids.add(id);
+					if (old == null) queueEvent(listener -> listener.contactCreated(contact));
+					else queueEvent(listener -> listener.contactUpdated(contact));
+					return contact;
+				});
+			}
+		} finally {
+			logLock.readLock().unlock();
 		}
-		// check if this contact is already in persistent storage
-		Contact other  = find(contact.getId());
-		if (other == contact) return true;
-		if ( other != null ) contacts.remove(other);
-		return contacts.add(contact);
+		sync(wal, sequence[0]);
+		modifications.incrementAndGet();
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Save a batch of new contacts.  Each contact is logged as it is
+	 * added, but the log is synced once for the whole batch.
+	 * @see contact.service.ContactDao#createAll(java.util.List)
+	 */
+	@Override
+	public boolean[] createAll(List<Contact> batch) {
+		final boolean[] saved = new boolean[batch.size()];
+		final long[] sequence = new long[1];
+		long lastSequence = 0;
+		boolean changed = false;
+		final WriteAheadLog wal = lockLog();
+		try {
+			for (int k = 0; k < saved.length; k++) {
+				Contact contact = batch.get(k);
+				if (contact.getId() == 0) {
+					insertNew(contact, wal, sequence);
+					saved[k] = true;
+				} else {
+					saved[k] = insertIfAbsent(contact, wal, sequence);
+				}
+				if (saved[k]) {
+					lastSequence = Math.max(lastSequence, sequence[0]);
+					changed = true;
+				}
+			}
+		} finally {
+			logLock.readLock().unlock();
+		}
+		sync(wal, lastSequence);
+		if (changed) modifications.incrementAndGet();
+		dispatch();
+		return saved;
+	}
+
+	/**
+	 * Add a contact with a new unique id.
+	 * @param contact the contact to add
+	 * @param wal log to append to, or null
+	 * @param sequence receives the sequence number of the log record
+	 */
+	private void insertNew(Contact contact, WriteAheadLog wal, long[] sequence) {
+		// a client may save a contact with the same id between
+		// nextId and insertion, so keep trying until we win
+		do {
+			contact.setId( idAllocator.nextId() );
+		} while (! insertIfAbsent(contact, wal, sequence));
+	}
+
+	/**
+	 * Add a contact if no contact with the same id is saved.
+	 * @param contact the contact to add
+	 * @param wal log to append to, or null
+	 * @param sequence receives the sequence number of the log record
+	 * @return true if the contact was added
+	 */
+	private boolean insertIfAbsent(Contact contact, WriteAheadLog wal, long[] sequence) {
+		idAllocator.observe(contact.getId());
+		Contact saved = contacts.computeIfAbsent(contact.getId(), id -> {
+			contact.setVersion(1);
+			sequence[0] = wal == null ? 0 : wal.logPut(contact);
+			titleIndex.add(id, contact.getTitle());
+			ids.add(id);
+			queueEvent(listener -> listener.contactCreated(contact));
+			return contact;
+		});
+		return saved == contact;
 	}
 
 	/**
 	 * Update a Contact.  Only the non-null fields of the
 	 * update are applied to the contact.
+	 * The saved contact is replaced by an updated copy, so readers
+	 * never see a partly applied update.
 	 * @param update update info for the contact.
 	 * @return true if the update is applied successfully.
 	 */
-	public boolean update(Contact update) {
-		Contact contact = find(update.getId());
-		if (contact == null) return false;
-		contact.applyUpdate(update);
-		save(contact);
+	public boolean update(final Contact update) {
+		return update(update, ANY_VERSION);
+	}
+
+	/**
+	 * Update a Contact if the saved contact has the expected version.
+	 * The version is checked under the same per-id lock that replaces it.
+	 * @see contact.service.ContactDao#update(contact.entity.Contact, long)
+	 */
+	@Override
+	public boolean update(final Contact update, long expectedVersion) {
+		final long[] sequence = new long[1];
+		final Contact[] updated = new Contact[1];
+		final WriteAheadLog wal = lockLog();
+		Outcome outcome;
+		try {
+			outcome = applyUpdate(update, expectedVersion, wal, sequence, updated);
+		} finally {
+			logLock.readLock().unlock();
+		}
+		if (outcome != Outcome.DONE) return false;
+		if (updated[0] == null) return true; // nothing changed
+		sync(wal, sequence[0]);
+		modifications.incrementAndGet();
+		dispatch();
 		return true;
 	}
 
 	/**
-	 * Get a unique contact ID.
-	 * @return unique id not in persistent storage
+	 * Replace a contact by an updated copy if it has the expected version,
+	 * and set the version of the update to the new version.  If the
+	 * update would change no field, nothing is replaced or logged and
+	 * the update gets the saved version.
+	 * The caller must hold the log lock, and sync and dispatch events.
+	 * @param sequence receives the sequence number of the log record
+	 * @param updated receives the updated copy, or stays null if nothing changed
+	 * @return DONE, NOT_FOUND or VERSION_MISMATCH
+	 */
+	private Outcome applyUpdate(final Contact update, long expectedVersion, WriteAheadLog wal,
+			long[] sequence, Contact[] updated) {
+		final Outcome[] outcome = { Outcome.NOT_FOUND };
+		contacts.computeIfPresent(update.getId(), (id, old) -> {
+			if (expectedVersion != ANY_VERSION && old.getVersion() != expectedVersion) {
+				outcome[0] = Outcome.VERSION_MISMATCH;
+				return old;
+			}
+			Contact copy = new Contact(old);
+			copy.applyUpdate(update);
+			if (copy.hasSameFields(old)) {
+				update.setVersion(old.getVersion());
+				outcome[0] = Outcome.DONE;
+				return old;
+			}
+			copy.setVersion(old.getVersion() + 1);
+			sequence[0] = wal == null ? 0 : wal.logPut(copy);
+			titleIndex.replace(id, old.getTitle(), copy.getTitle());
+			queueEvent(listener -> listener.contactUpdated(copy));
+			outcome[0] = Outcome.DONE;
+			return updated[0] = copy;
+		});
+		if (updated[0] != null) update.setVersion(updated[0].getVersion());
+		return outcome[0];
+	}
+
+	/**
+	 * Apply the operations holding the log lock once, and sync the log
+	 * once at the end, so the batch costs one disk write.
+	 * Listeners are told about the changes after the log is synced.
+	 * @see contact.service.ContactDao#batch(java.util.List)
+	 */
+	@Override
+	public Outcome[] batch(List<Operation> operations) {
+		final Outcome[] outcomes = new Outcome[operations.size()];
+		final long[] sequence = new long[1];
+		long lastSequence = 0;
+		boolean changed = false;
+		final WriteAheadLog wal = lockLog();
+		try {
+			for (int k = 0; k < outcomes.length; k++) {
+				Operation op = operations.get(k);
+				long expectedVersion = op.getIfMatch() == null ? ANY_VERSION : op.getIfMatch();
+				Contact contact = op.getContact();
+				sequence[0] = 0;
+				if (op.getMethod() == null || (op.getMethod() != Operation.Method.DELETE && contact == null)) {
+					outcomes[k] = Outcome.INVALID;
+					continue;
+				}
+				switch (op.getMethod()) {
+				case POST:
+					if (contact.getId() == 0) {
+						insertNew(contact, wal, sequence);
+						outcomes[k] = Outcome.DONE;
+					} else {
+						outcomes[k] = insertIfAbsent(contact, wal, sequence) ? Outcome.DONE : Outcome.EXISTS;
+					}
+					break;
+				case PUT:
+					contact.setId(op.getId());
+					Contact[] updated = new Contact[1];
+					outcomes[k] = applyUpdate(contact, expectedVersion, wal, sequence, updated);
+					// an update that changes nothing leaves updated[0] null
+					if (updated[0] == null) continue;
+					break;
+				default:
+					outcomes[k] = applyDelete(op.getId(), expectedVersion, wal, sequence);
+				}
+				if (outcomes[k] == Outcome.DONE) {
+					lastSequence = Math.max(lastSequence, sequence[0]);
+					changed = true;
+				}
+			}
+		} finally {
+			logLock.readLock().unlock();
+		}
+		sync(wal, lastSequence);
+		if (changed) modifications.incrementAndGet();
+		dispatch();
+		return outcomes;
+	}
+
+	@Override
+	public long getModificationCount() {
+		return modifications.get();
+	}
+
+	@Override
+	public void addContactListener(ContactListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeContactListener(ContactListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Put a contact loaded from a snapshot or log, keeping its version.
+	 * The change is not logged and listeners are not told about it.
+	 * @param contact the contact to restore
+	 */
+	void restore(Contact contact) {
+		// snapshots from before contacts had versions
+		if (contact.getVersion() == 0) contact.setVersion(1);
+		idAllocator.observe(contact.getId());
+		contacts.compute(contact.getId(), (id, old) -> {
+			titleIndex.replace(id, old == null ? null : old.getTitle(), contact.getTitle());
+			ids.add(id);
+			return contact;
+		});
+	}
+
+	/**
+	 * Queue a call to each listener for a change.  Called under the
+	 * per-id lock that applies the change.
 	 */
-	private synchronized long getUniqueId() {
-		long id = nextId.getAndAdd(1L);
-		while( id < Long.MAX_VALUE ) {	
-			if (find(id) == null) return id;
-			id = nextId.getAndAdd(1L);
+	private void queueEvent(Consumer<ContactListener> call) {
+		if (listeners.isEmpty()) return;
+		events.add(() -> {
+			for (ContactListener listener : listeners) call.accept(listener);
+		});
+	}
+
+	/**
+	 * Make the queued calls to listeners, in the order they were queued.
+	 * Called after a change is synced; it may also make the calls for
+	 * changes of other writers that are applied, and so already seen by
+	 * readers, but not yet synced.  When it returns, the calls for the
+	 * caller's own changes have been made.  Calls for a change whose
+	 * sync failed are made by the next writer.
+	 */
+	private void dispatch() {
+		synchronized (dispatchLock) {
+			for (Runnable event; (event = events.poll()) != null; ) event.run();
+		}
+	}
+
+	/**
+	 * Take the read lock for a change and get the log to append to.
+	 * The caller must release the read lock.
+	 * @return the log, or null if changes are not logged
+	 */
+	private WriteAheadLog lockLog() {
+		logLock.readLock().lock();
+		return log;
+	}
+
+	/**
+	 * Wait until a logged change is durable.
+	 * @param wal the log the change was appended to, or null
+	 * @param sequence sequence number of the record, or 0 if none
+	 * @throws UncheckedIOException if the log cannot be written
+	 */
+	private static void sync(WriteAheadLog wal, long sequence) {
+		if (wal == null || sequence <= 0) return;
+		try {
+			wal.sync(sequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Change was not logged", e);
 		}
-		return id; // this should never happen
 	}
 
+	/**
+	 * Find contacts whose title contains a string, ignoring case.
+	 * Queries of at least 3 characters are narrowed down with
+	 * the trigram index before titles are compared.
+	 * @see contact.service.ContactDao#findByTitle(java.lang.String)
+	 */
 	@Override
-	public List<Contact> findByTitle(String prefix) {
+	public List<Contact> findByTitle(String titlestr) {
+		String query = TitleIndex.normalize(titlestr);
 		List<Contact> cts = new ArrayList<Contact>();
-		Iterator<Contact> itr = this.findAll().iterator();
+		Collection<Long> candidates = titleIndex.candidates(query);
+		Iterator<Contact> itr;
+		if (candidates == null) itr = contacts.values().iterator();
+		else itr = candidates.stream().map(contacts::get).iterator();
 		while(itr.hasNext()) {
 			Contact c = itr.next();
-			if(c.getTitle().contains(prefix))
+			// the contact may have been deleted since its id was indexed
+			if(c != null && TitleIndex.normalize(c.getTitle()).contains(query))
+				cts.add(c);
+		}
+		return cts;
+	}
+
+	/**
+	 * Return a page of contacts whose title contains a string, walking
+	 * the trigram candidates (or all ids) from the first id after afterId.
+	 * @see contact.service.ContactDao#findByTitle(java.lang.String, long, int)
+	 */
+	@Override
+	public List<Contact> findByTitle(String titlestr, long afterId, int limit) {
+		String query = TitleIndex.normalize(titlestr);
+		NavigableSet<Long> candidates = titleIndex.candidates(query);
+		if (candidates == null) candidates = ids;
+		return page(candidates.tailSet(afterId, false), query, limit);
+	}
+
+	/**
+	 * Return a page of matching contacts, copying only the requested fields.
+	 * @see contact.service.ContactDao#findByTitle(java.lang.String, long, int, java.util.Set)
+	 */
+	@Override
+	public List<Contact> findByTitle(String titlestr, long afterId, int limit, Set<ContactField> fields) {
+		return project(findByTitle(titlestr, afterId, limit), fields);
+	}
+
+	/** Replace each contact in a list by a copy with only some fields. */
+	private static List<Contact> project(List<Contact> cts, Set<ContactField> fields) {
+		cts.replaceAll(c -> ContactField.project(c, fields));
+		return cts;
+	}
+
+	/**
+	 * Collect saved contacts with the given ids, in order, whose title
+	 * contains the query.
+	 * @param candidates ids to look at, in ascending order
+	 * @param query normalized query, or empty string to take every contact
+	 * @param limit maximum number of contacts to collect
+	 * @return the contacts
+	 */
+	private List<Contact> page(Collection<Long> candidates, String query, int limit) {
+		List<Contact> cts = new ArrayList<Contact>(Math.min(limit, 1024));
+		Iterator<Long> itr = candidates.iterator();
+		while (cts.size() < limit && itr.hasNext()) {
+			Contact c = contacts.get(itr.next());
+			// the contact may have been deleted since its id was indexed
+			if (c != null && (query.isEmpty() || TitleIndex.normalize(c.getTitle()).contains(query)))
 				cts.add(c);
 		}
 		return cts;
@@ -1,19 +1,13 @@
 package contact.service.mem;
 
 import java.io.File;
-import java.util.Iterator;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
-import javax.xml.bind.JAXB;
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-
-import org.eclipse.persistence.internal.descriptors.InteractionArgument;
-
-import contact.entity.Contact;
-import contact.entity.ContactList;
+import contact.service.BlockIdAllocator;
 import contact.service.ContactDao;
 import contact.service.DaoFactory;
 
@@ -21,20 +15,84 @@ import contact.service.DaoFactory;
  * Manage instances of Data Access Objects (DAO) used in the app.
  * This enables you to change the implementation of the actual MemContactDao
  * without changing the rest of your application.
- * 
+ * <p>
+ * Contacts are kept in a snapshot file plus a write-ahead log of the
+ * changes made since the snapshot.  On startup the snapshot is loaded
+ * and the log is replayed on top of it.  A background thread writes a
+ * new snapshot and discards the old log every few minutes, and again
+ * on shutdown.
+ * The snapshot file is set by the system property
+ * <tt>contact.snapshot</tt> (default <tt>data/data.xml</tt>);
+ * the log is the same path with <tt>.log</tt> appended.
+ * The property <tt>contact.snapshot.interval</tt> sets the seconds
+ * between snapshots (default 300, 0 for only at shutdown).
+ * If the snapshot cannot be loaded, or the log cannot be replayed or
+ * opened, the factory is not created, rather than serve changes that
+ * would not be saved or write an empty snapshot over the saved one.
+ * A snapshot file whose name ends in <tt>.bin</tt> is written in a compact
+ * binary format that loads much faster than XML; use SnapshotConverter
+ * to convert an existing XML snapshot.
+ *
  * @author jim
  */
 public class MemDaoFactory extends DaoFactory {
+	/** system property with the path of the snapshot file. */
+	public static final String SNAPSHOT_PROPERTY = "contact.snapshot";
+	private static final String DEFAULT_SNAPSHOT = "data/data.xml";
+	/** system property with the seconds between background snapshots. */
+	public static final String SNAPSHOT_INTERVAL_PROPERTY = "contact.snapshot.interval";
+	private static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+	/** system property with the number of threads used to load a snapshot. */
+	public static final String LOAD_THREADS_PROPERTY = "contact.snapshot.loadThreads";
+	private static Logger logger = Logger.getLogger(MemDaoFactory.class.getName());
 	// singleton instance of this factory
 	private static DaoFactory factory;
-	private ContactDao daoInstance;
+	private final MemContactDao daoInstance;
+	private final File snapshotFile;
+	private final File logFile;
+	private final WriteAheadLog log;
+	private final Snapshotter snapshotter;
+	private final ScheduledExecutorService scheduler;
 
 	private MemDaoFactory() {
-		daoInstance = new MemContactDao();
-		load(daoInstance);
+		snapshotFile = new File( System.getProperty(SNAPSHOT_PROPERTY, DEFAULT_SNAPSHOT) );
+		logFile = new File( snapshotFile.getPath() + ".log" );
+		// ids are only reserved in memory; those loaded below are observed
+		daoInstance = new MemContactDao(BlockIdAllocator.fromProperties(new BlockIdAllocator.Counter()));
+		SnapshotFormat format = SnapshotFormat.forFile(snapshotFile, Integer.getInteger(LOAD_THREADS_PROPERTY, 1));
+		load(daoInstance, snapshotFile, format);
+		try {
+			long replayed = WriteAheadLog.replay(WriteAheadLog.previousSegment(logFile), daoInstance);
+			replayed += WriteAheadLog.replay(logFile, daoInstance);
+			if (replayed > 0) logger.info("Replayed " + replayed + " changes from " + logFile);
+			log = new WriteAheadLog(logFile);
+			daoInstance.setWriteAheadLog(log);
+		} catch (IOException e) {
+			logger.severe("Cannot open log " + logFile + ": " + e.getMessage());
+			throw new IllegalStateException("Cannot open log " + logFile, e);
+		}
+		snapshotter = new Snapshotter(daoInstance, log, snapshotFile, format);
+		long interval = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL);
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "contact-snapshotter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(snapshotter::snapshotIfChanged, interval, interval, TimeUnit.SECONDS);
+		} else {
+			scheduler = null;
+		}
 	}
 
-	public static DaoFactory getInstance() {
+	/**
+	 * Get the singleton instance of this factory, loading saved
+	 * contacts the first time or after a shutdown.
+	 * @return instance of this factory
+	 * @throws IllegalStateException if the snapshot cannot be loaded,
+	 *     or the log of changes cannot be replayed or opened
+	 */
+	public static synchronized DaoFactory getInstance() {
 		if (factory == null) factory = new MemDaoFactory();
 		return factory;
 	}
@@ -43,39 +101,59 @@ public class MemDaoFactory extends DaoFactory {
 		return daoInstance;
 	}
 
+	/**
+	 * Get the object that writes snapshots, to take one now or
+	 * to read how long the last one took and how big it was.
+	 * @return the snapshotter for this factory's DAO
+	 */
+	public Snapshotter getSnapshotter() {
+		return snapshotter;
+	}
+
+	/**
+	 * Write a snapshot of all contacts and close the log.
+	 * Changes made after this fail, since they cannot be logged.
+	 * After shutdown, getInstance creates a new factory that
+	 * loads the saved data again.
+	 */
 	@Override
 	public void shutdown() {
-		List<Contact> contacts = daoInstance.findAll();
-		ContactList exportContacts = new ContactList();
-		exportContacts.setContactList( contacts );
-
+		synchronized (MemDaoFactory.class) {
+			if (factory == this) factory = null;
+		}
+		if (scheduler != null) scheduler.shutdownNow();
 		try {
-			JAXBContext context = JAXBContext.newInstance( ContactList.class );
-			File outputFile = new File( "D://data/data.xml" );
-			Marshaller marshaller = context.createMarshaller();	
-			marshaller.marshal( exportContacts, outputFile );
-		} catch ( JAXBException e ) {
-			e.printStackTrace();
+			snapshotter.snapshot();
+			log.close();
+		} catch (IOException e) {
+			// the log still has the changes, so they are replayed at next start
+			logger.severe("Cannot save snapshot " + snapshotFile + ": " + e.getMessage());
 		}
-//		System.out.println("save");
 	}
 
-	public static void load(ContactDao daoInstance) {
-		JAXBContext context;
-		try {
-			context = JAXBContext.newInstance( ContactList.class );
-			File inputFile = new File( "D://data/data.xml" );
-			Unmarshaller unmarshaller = context.createUnmarshaller();
-			ContactList importContacts = (ContactList) unmarshaller.unmarshal(inputFile);
-			if(importContacts.getContactList() != null) {
-				Iterator<Contact> itr = importContacts.getContactList().iterator();
-				while(itr.hasNext())
-					daoInstance.save(itr.next());
-			}
+	/**
+	 * Load contacts from a snapshot file into a DAO.
+	 * The file is streamed, so it may be larger than the heap.
+	 * The number of threads that save contacts from an XML snapshot is
+	 * set by the system property <tt>contact.snapshot.loadThreads</tt> (default 1).
+	 * @param daoInstance the DAO to put contacts in
+	 * @param inputFile the snapshot file; nothing is loaded if it does not exist
+	 * @throws IllegalStateException if the snapshot cannot be read
+	 */
+	public static void load(MemContactDao daoInstance, File inputFile) {
+		load(daoInstance, inputFile, SnapshotFormat.forFile(inputFile, Integer.getInteger(LOAD_THREADS_PROPERTY, 1)));
+	}
 
-		} catch (JAXBException e) {
-			e.printStackTrace();
-		}	
-//		System.out.println("load");
+	private static void load(MemContactDao daoInstance, File inputFile, SnapshotFormat format) {
+		if (! inputFile.exists()) return;
+		try {
+			long start = System.currentTimeMillis();
+			long count = format.read(inputFile, daoInstance);
+			logger.info(String.format("Loaded %d contacts from %s in %d ms", count, inputFile, System.currentTimeMillis() - start));
+		} catch (IOException | RuntimeException e) {
+			// a corrupt file may fail with an unchecked exception too
+			logger.severe("Cannot load snapshot " + inputFile + ": " + e.getMessage());
+			throw new IllegalStateException("Cannot load snapshot " + inputFile, e);
+		}
 	}
 }
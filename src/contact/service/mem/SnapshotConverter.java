@@ -0,0 +1,38 @@
+package contact.service.mem;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Convert a snapshot file from one format to the other, for example
+ * an existing <tt>data.xml</tt> to the binary format:
+ * <p>
+ * <tt>java contact.service.mem.SnapshotConverter data/data.xml data/data.bin</tt>
+ * <p>
+ * The format of each file is chosen by its name, as for the
+ * <tt>contact.snapshot</tt> property.  Changes in the input's log
+ * are replayed, so the output holds all saved data.
+ * Stop the server before converting.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class SnapshotConverter {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: java contact.service.mem.SnapshotConverter input-file output-file");
+			System.exit(1);
+		}
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		long start = System.currentTimeMillis();
+		MemContactDao dao = new MemContactDao();
+		SnapshotFormat.forFile(input, Runtime.getRuntime().availableProcessors()).read(input, dao);
+		File logFile = new File(input.getPath() + ".log");
+		WriteAheadLog.replay(WriteAheadLog.previousSegment(logFile), dao);
+		WriteAheadLog.replay(logFile, dao);
+		long size = SnapshotFormat.forFile(output, 1).write(dao.contacts(), output);
+		System.out.printf("Converted %d contacts to %s (%d bytes) in %d ms%n",
+				dao.contacts().size(), output, size, System.currentTimeMillis() - start);
+	}
+}
@@ -0,0 +1,47 @@
+package contact.service.mem;
+
+import java.io.File;
+import java.io.IOException;
+
+import contact.entity.Contact;
+
+/**
+ * A file format for snapshots of the in-memory contacts.
+ * Snapshots are written to a temporary file and synced before they
+ * replace the old snapshot, so a crash never leaves a partly written one.
+ *
+ * @author Natchanon Hongladaromp
+ */
+interface SnapshotFormat {
+
+	/**
+	 * Write contacts to a snapshot file.
+	 * @param contacts the contacts to save.  The collection may change
+	 *   while it is written, as long as its iterator allows that.
+	 * @param file the snapshot file
+	 * @return size of the snapshot in bytes
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	long write(Iterable<Contact> contacts, File file) throws IOException;
+
+	/**
+	 * Put all contacts in a snapshot file into a DAO, with their versions.
+	 * @param file the snapshot file
+	 * @param dao the DAO to put contacts in
+	 * @return number of contacts read
+	 * @throws IOException if the file cannot be read
+	 */
+	long read(File file, MemContactDao dao) throws IOException;
+
+	/**
+	 * Choose the format for a snapshot file by its name: binary for
+	 * names ending in <tt>.bin</tt>, XML for anything else.
+	 * @param file the snapshot file
+	 * @param loadThreads number of threads used to load an XML snapshot
+	 * @return format of the file
+	 */
+	static SnapshotFormat forFile(File file, int loadThreads) {
+		if (file.getName().endsWith(".bin")) return new BinarySnapshot();
+		return new XmlSnapshot(loadThreads);
+	}
+}
@@ -0,0 +1,94 @@
+package contact.service.mem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Writes snapshots of a MemContactDao and compacts its log.
+ * A snapshot is taken without stopping writers:
+ * <ol>
+ * <li>the log is switched to a new file, so the old file holds every
+ *     change made before this point and the new file every later change;
+ * <li>the contacts are written while writers keep changing them, so each
+ *     contact is saved as it was at some moment after the switch;
+ * <li>the old log file is deleted.
+ * </ol>
+ * Log records hold the whole state of a contact, so replaying the new
+ * log on top of this snapshot gives the latest state, even for contacts
+ * that changed while the snapshot was written.
+ * <p>
+ * The time taken and size of the last snapshot are logged and can be read
+ * with {@link #getLastDurationMillis()} and {@link #getLastSizeBytes()}.
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class Snapshotter {
+	private static Logger logger = Logger.getLogger(Snapshotter.class.getName());
+	private final MemContactDao dao;
+	private final WriteAheadLog log;
+	private final File snapshotFile;
+	private final SnapshotFormat format;
+	private volatile long lastDurationMillis = -1;
+	private volatile long lastSizeBytes = -1;
+	private volatile long lastFinishedMillis;
+
+	/**
+	 * @param dao the DAO to snapshot
+	 * @param log the log attached to the DAO, or null if changes are not logged
+	 * @param snapshotFile the snapshot file to write
+	 * @param format the format to write the snapshot in
+	 */
+	Snapshotter(MemContactDao dao, WriteAheadLog log, File snapshotFile, SnapshotFormat format) {
+		this.dao = dao;
+		this.log = log;
+		this.snapshotFile = snapshotFile;
+		this.format = format;
+	}
+
+	/**
+	 * Write a snapshot if anything was logged since the last one.
+	 * Errors are logged, and the log keeps all changes until
+	 * a later snapshot succeeds.
+	 */
+	public void snapshotIfChanged() {
+		try {
+			if (log != null && ! log.hasRecords()) return;
+			snapshot();
+		} catch (IOException e) {
+			logger.severe("Cannot save snapshot " + snapshotFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write a snapshot of all contacts and then discard the log
+	 * records that it replaces.
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public synchronized void snapshot() throws IOException {
+		long start = System.currentTimeMillis();
+		if (log != null) dao.rotateLog();
+		long size = format.write(dao.contacts(), snapshotFile);
+		if (log != null) log.deletePreviousSegment();
+		long finish = System.currentTimeMillis();
+		lastDurationMillis = finish - start;
+		lastSizeBytes = size;
+		lastFinishedMillis = finish;
+		logger.info(String.format("Saved snapshot %s: %d bytes in %d ms", snapshotFile, size, lastDurationMillis));
+	}
+
+	/** @return time taken by the last snapshot in milliseconds, or -1 if none was taken */
+	public long getLastDurationMillis() {
+		return lastDurationMillis;
+	}
+
+	/** @return size of the last snapshot in bytes, or -1 if none was taken */
+	public long getLastSizeBytes() {
+		return lastSizeBytes;
+	}
+
+	/** @return time the last snapshot finished, in milliseconds since the epoch, or 0 if none */
+	public long getLastFinishedMillis() {
+		return lastFinishedMillis;
+	}
+}
@@ -0,0 +1,132 @@
+package contact.service.mem;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Inverted trigram index over contact titles.
+ * Each lowercase 3-character substring of a title maps to the ids
+ * of contacts whose title contains it.  Any title that contains a
+ * query string must contain every trigram of the query, so the ids
+ * filed under the rarest query trigram are a small superset of
+ * the matches.  Callers still check each candidate title.
+ * <p>
+ * Postings are updated atomically per trigram, so the index may be
+ * changed and searched from many threads at once.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class TitleIndex {
+	/** length of the substrings that are indexed. */
+	static final int GRAM_LENGTH = 3;
+	private final ConcurrentMap<String,Posting> postings;
+
+	/**
+	 * Ids of contacts with one trigram.  The size is kept separately
+	 * because counting a skip list takes linear time; it is only
+	 * changed while the map holds the lock for this trigram.
+	 */
+	private static class Posting {
+		final ConcurrentSkipListSet<Long> ids = new ConcurrentSkipListSet<Long>();
+		volatile int size;
+	}
+
+	TitleIndex() {
+		postings = new ConcurrentHashMap<String,Posting>();
+	}
+
+	/**
+	 * Normalize a title or query for case-insensitive matching.
+	 * @param text title or query, may be null
+	 * @return lowercase text, or empty string if text is null
+	 */
+	static String normalize(String text) {
+		return text == null ? "" : text.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Index a contact title.
+	 * @param id id of the contact
+	 * @param title the title, may be null
+	 */
+	void add(long id, String title) {
+		for (String gram : grams(title)) addPosting(gram, id);
+	}
+
+	/**
+	 * Remove a contact title from the index.
+	 * @param id id of the contact
+	 * @param title the title that was indexed, may be null
+	 */
+	void remove(long id, String title) {
+		for (String gram : grams(title)) removePosting(gram, id);
+	}
+
+	/**
+	 * Change the indexed title of a contact, touching only the
+	 * trigrams that differ between old and new title.
+	 * @param id id of the contact
+	 * @param oldTitle title that was indexed, or null
+	 * @param newTitle title to index, or null
+	 */
+	void replace(long id, String oldTitle, String newTitle) {
+		Set<String> oldGrams = grams(oldTitle);
+		Set<String> newGrams = grams(newTitle);
+		for (String gram : newGrams)
+			if (! oldGrams.contains(gram)) addPosting(gram, id);
+		for (String gram : oldGrams)
+			if (! newGrams.contains(gram)) removePosting(gram, id);
+	}
+
+	/**
+	 * Get ids of contacts whose title may contain the query.
+	 * @param query normalized query string
+	 * @return candidate ids in ascending order, or null if the query
+	 *   is too short to use the index and the caller must scan.
+	 */
+	NavigableSet<Long> candidates(String query) {
+		if (query.length() < GRAM_LENGTH) return null;
+		NavigableSet<Long> smallest = null;
+		int smallestSize = Integer.MAX_VALUE;
+		for (String gram : grams(query)) {
+			Posting posting = postings.get(gram);
+			if (posting == null) return Collections.emptyNavigableSet();
+			int size = posting.size;
+			if (size < smallestSize) {
+				smallest = posting.ids;
+				smallestSize = size;
+			}
+		}
+		return smallest;
+	}
+
+	private void addPosting(String gram, long id) {
+		postings.compute(gram, (key, posting) -> {
+			if (posting == null) posting = new Posting();
+			if (posting.ids.add(id)) posting.size++;
+			return posting;
+		});
+	}
+
+	private void removePosting(String gram, long id) {
+		postings.computeIfPresent(gram, (key, posting) -> {
+			if (posting.ids.remove(id)) posting.size--;
+			return posting.size == 0 ? null : posting;
+		});
+	}
+
+	/** Get the distinct trigrams of the normalized text. */
+	private static Set<String> grams(String text) {
+		String normalized = normalize(text);
+		Set<String> grams = new HashSet<String>();
+		for (int k = 0; k + GRAM_LENGTH <= normalized.length(); k++)
+			grams.add(normalized.substring(k, k + GRAM_LENGTH));
+		return grams;
+	}
+}
@@ -0,0 +1,342 @@
+package contact.service.mem;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import contact.entity.Contact;
+
+/**
+ * Append-only log of changes made to a MemContactDao.
+ * Every save, update or delete is written as one record holding
+ * the resulting contact (or the deleted id), so replaying the log
+ * in order on top of a snapshot restores the latest state.
+ * <p>
+ * Writers append records to an in-memory buffer and then wait
+ * for a background thread to write the buffer and fsync the file.
+ * While one fsync is running the next writers' records collect in
+ * the buffer, so one fsync commits a whole group of writes.
+ * <p>
+ * Each record is its length, a CRC32 of the body, and the body.
+ * A torn record at the end of the file (from a crash in the middle
+ * of a write) is detected by replay and cut off.  A whole record of a
+ * type this release does not know, such as one written by a newer
+ * release, stops the replay with an error and is kept in the file.
+ * <p>
+ * When a snapshot is taken the log is rotated: the current file is
+ * renamed with <tt>.old</tt> appended and a new file is started.
+ * The old file is deleted once the snapshot is saved.  If the
+ * snapshot fails, both files are replayed at the next start.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class WriteAheadLog {
+	/** a saved contact, without version (written by older releases). */
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	/** a saved contact with its version. */
+	private static final byte PUT_VERSIONED = 3;
+	private static final int HEADER_SIZE = 8;
+	private static Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+	private final File file;
+	/** the open log file, only replaced while no records are pending. */
+	private FileChannel channel;
+	private final Thread flusher;
+	/** records appended but not yet written, guarded by this. */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	/** sequence number of the last appended record, guarded by this. */
+	private long appended;
+	/** sequence number of the last record written and fsynced, guarded by this. */
+	private long synced;
+	/** set if writing the log failed; no more records can be committed. */
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * Open a log for appending.  Records already in the file are kept.
+	 * @param file the log file, created if it does not exist
+	 * @throws IOException if the file cannot be opened
+	 */
+	WriteAheadLog(File file) throws IOException {
+		this.file = file;
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		channel = open(file);
+		flusher = new Thread(this::flushLoop, "contact-wal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/**
+	 * Get the file that holds records from before the last rotation.
+	 * @param file the log file
+	 * @return the previous log file, which may not exist
+	 */
+	static File previousSegment(File file) {
+		return new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Append a record that a contact was saved or updated.
+	 * This only buffers the record; call {@link #sync(long)} to wait until it is durable.
+	 * @param contact the contact as it is now stored
+	 * @return sequence number of the record
+	 */
+	long logPut(Contact contact) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(body);
+		try {
+			out.writeByte(PUT_VERSIONED);
+			out.writeLong(contact.getId());
+			out.writeLong(contact.getVersion());
+			writeString(out, contact.getTitle());
+			writeString(out, contact.getName());
+			writeString(out, contact.getEmail());
+			writeString(out, contact.getPhoneNumber());
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen writing to memory
+		}
+		return append(body.toByteArray());
+	}
+
+	/**
+	 * Append a record that a contact was deleted.
+	 * @param id id of the deleted contact
+	 * @return sequence number of the record
+	 */
+	long logDelete(long id) {
+		ByteBuffer body = ByteBuffer.allocate(9);
+		body.put(DELETE).putLong(id);
+		return append(body.array());
+	}
+
+	private synchronized long append(byte[] body) {
+		if (closed) throw new IllegalStateException("Log " + file + " is closed");
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(body.length).putInt((int) crc.getValue());
+		pending.write(header.array(), 0, HEADER_SIZE);
+		pending.write(body, 0, body.length);
+		notifyAll();
+		return ++appended;
+	}
+
+	/**
+	 * Wait until a record and all records before it are on disk.
+	 * @param sequence sequence number returned when the record was appended
+	 * @throws IOException if the log could not be written
+	 */
+	synchronized void sync(long sequence) throws IOException {
+		boolean interrupted = false;
+		while (synced < sequence && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (synced < sequence) throw failure;
+	}
+
+	/** Write and fsync batches of pending records until the log is closed. */
+	private void flushLoop() {
+		while (true) {
+			ByteArrayOutputStream batch;
+			long target;
+			synchronized (this) {
+				while (pending.size() == 0 && ! closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// keep flushing until closed
+					}
+				}
+				if (pending.size() == 0) return;
+				batch = pending;
+				pending = new ByteArrayOutputStream(batch.size());
+				target = appended;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+				while (buffer.hasRemaining()) channel.write(buffer);
+				channel.force(false);
+				synchronized (this) {
+					synced = target;
+					notifyAll();
+				}
+			} catch (IOException e) {
+				logger.severe("Cannot write log " + file + ": " + e.getMessage());
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Test if any records were appended since the log was opened or rotated.
+	 * @return true if the current log file has records
+	 */
+	synchronized boolean hasRecords() throws IOException {
+		return pending.size() > 0 || channel.size() > 0;
+	}
+
+	/**
+	 * Start a new log file.  The current file becomes the previous segment;
+	 * if a previous segment is still there from a failed snapshot, the
+	 * current records are added to it.
+	 * The caller must stop appends while the log is rotated.
+	 * @throws IOException if the files cannot be switched
+	 */
+	synchronized void rotate() throws IOException {
+		sync(appended);
+		channel.close();
+		File previous = previousSegment(file);
+		if (previous.exists()) {
+			try (FileChannel out = new RandomAccessFile(previous, "rw").getChannel()) {
+				Files.copy(file.toPath(), Channels.newOutputStream(out.position(out.size())));
+				out.force(true);
+			}
+			Files.delete(file.toPath());
+		} else {
+			Files.move(file.toPath(), previous.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		channel = open(file);
+	}
+
+	/**
+	 * Delete the previous log file, after a snapshot has saved its changes.
+	 * @throws IOException if the file cannot be deleted
+	 */
+	void deletePreviousSegment() throws IOException {
+		Files.deleteIfExists(previousSegment(file).toPath());
+	}
+
+	/**
+	 * Write all pending records and close the file.
+	 * @throws IOException if pending records could not be written
+	 */
+	void close() throws IOException {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.close();
+		if (failure != null) throw failure;
+	}
+
+	/**
+	 * Apply the records in a log file to a DAO.  A torn or corrupt
+	 * record ends the replay and is cut off the end of the file,
+	 * along with anything after it.
+	 * @param file the log file; nothing is done if it does not exist
+	 * @param dao the DAO to apply changes to.  It must not have a log attached.
+	 * @return number of records applied
+	 * @throws IOException if the file cannot be read, or has a record of
+	 *     an unknown type.  The file is not changed then.
+	 */
+	static long replay(File file, MemContactDao dao) throws IOException {
+		if (! file.exists()) return 0;
+		long count = 0;
+		long goodLength = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int checksum = in.readInt();
+				if (length < 0 || length > file.length()) break;
+				byte[] body = new byte[length];
+				in.readFully(body);
+				CRC32 crc = new CRC32();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != checksum) break;
+				apply(body, dao);
+				count++;
+				goodLength += HEADER_SIZE + length;
+			}
+		} catch (EOFException e) {
+			// torn record at end of file
+		}
+		if (goodLength < file.length()) {
+			logger.warning("Discarding " + (file.length() - goodLength) + " corrupt bytes at end of " + file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(goodLength);
+			}
+		}
+		return count;
+	}
+
+	private static void apply(byte[] body, MemContactDao dao) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte op = in.readByte();
+		long id = in.readLong();
+		if (op == DELETE) {
+			dao.delete(id);
+		} else if (op == PUT || op == PUT_VERSIONED) {
+			Contact contact = new Contact(id);
+			contact.setVersion(op == PUT ? 1 : in.readLong());
+			contact.setTitle(readString(in));
+			contact.setName(readString(in));
+			contact.setEmail(readString(in));
+			contact.setPhoneNumber(readString(in));
+			dao.restore(contact);
+		} else {
+			throw new IOException("Unknown log record type " + op);
+		}
+	}
+
+	/** Write a nullable string as a length (-1 for null) and UTF-8 bytes. */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,145 @@
+package contact.service.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import contact.entity.Contact;
+import contact.entity.ContactXmlReader;
+
+/**
+ * Snapshot of contacts in the same XML layout as a ContactList:
+ * a <tt>contacts</tt> element holding one <tt>contact</tt> element per contact.
+ * Contacts are written and read one at a time with StAX, so the whole
+ * document is never held in memory.
+ *
+ * @author Natchanon Hongladaromp
+ */
+class XmlSnapshot implements SnapshotFormat {
+	/** number of contacts handed to a thread at a time when loading. */
+	private static final int LOAD_BATCH_SIZE = 1000;
+	private static final JAXBContext CONTEXT;
+	private final int loadThreads;
+
+	static {
+		try {
+			CONTEXT = JAXBContext.newInstance( Contact.class );
+		} catch (JAXBException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * @param loadThreads number of threads to save contacts with when
+	 *   reading a snapshot.  If more than one, parsed contacts are handed
+	 *   to other threads in batches.
+	 */
+	XmlSnapshot(int loadThreads) {
+		this.loadThreads = loadThreads;
+	}
+
+	@Override
+	public long write(Iterable<Contact> contacts, File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null) dir.mkdirs();
+		File tempFile = new File( file.getPath() + ".tmp" );
+		try (FileOutputStream fileOut = new FileOutputStream( tempFile )) {
+			OutputStream out = new BufferedOutputStream( fileOut, 1 << 16 );
+			XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter( out, "UTF-8" );
+			Marshaller marshaller = CONTEXT.createMarshaller();
+			marshaller.setProperty( Marshaller.JAXB_FRAGMENT, true );
+			xml.writeStartDocument( "UTF-8", "1.0" );
+			xml.writeStartElement( "contacts" );
+			for (Contact contact : contacts) marshaller.marshal( contact, xml );
+			xml.writeEndElement();
+			xml.writeEndDocument();
+			xml.close();
+			out.flush();
+			fileOut.getFD().sync();
+		} catch (JAXBException | XMLStreamException e) {
+			throw new IOException("Cannot write snapshot " + file, e);
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file.length();
+	}
+
+	/**
+	 * One thread parses the file, and saves contacts itself or hands
+	 * them in batches to the load threads.  At most a few batches are
+	 * waiting at any time, so memory use does not grow with the file size.
+	 * If saving a batch fails, reading stops and the first failure is
+	 * thrown once the load threads are done.
+	 */
+	@Override
+	public long read(File file, MemContactDao dao) throws IOException {
+		ExecutorService savers = null;
+		if (loadThreads > 1) {
+			savers = new ThreadPoolExecutor(loadThreads, loadThreads, 0, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(loadThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		long count = 0;
+		try (ContactXmlReader reader = new ContactXmlReader( new BufferedInputStream( new FileInputStream(file), 1 << 16 ) )) {
+			List<Contact> batch = new ArrayList<Contact>(LOAD_BATCH_SIZE);
+			while (reader.hasNext() && failure.get() == null) {
+				batch.add( reader.next() );
+				count++;
+				if (batch.size() == LOAD_BATCH_SIZE) {
+					saveAll(batch, dao, savers, failure);
+					batch = new ArrayList<Contact>(LOAD_BATCH_SIZE);
+				}
+			}
+			saveAll(batch, dao, savers, failure);
+		} catch (IllegalStateException e) {
+			throw new IOException("Cannot read snapshot " + file, e.getCause());
+		} finally {
+			if (savers != null) {
+				savers.shutdown();
+				try {
+					savers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (failure.get() != null) throw new IOException("Cannot read snapshot " + file, failure.get());
+		return count;
+	}
+
+	/**
+	 * Save a batch of contacts in this thread or a load thread.
+	 * @param failure set to the exception if saving fails, unless it is already set
+	 */
+	private static void saveAll(List<Contact> batch, MemContactDao dao, ExecutorService savers,
+			AtomicReference<RuntimeException> failure) {
+		Runnable task = () -> {
+			try {
+				for (Contact contact : batch) dao.restore(contact);
+			} catch (RuntimeException e) {
+				failure.compareAndSet(null, e);
+			}
+		};
+		if (savers == null) task.run();
+		else savers.execute(task);
+	}
+}
@@ -0,0 +1,201 @@
+package test.contact.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import contact.ExecutionMode;
+import contact.resource.ContactResource;
+
+/**
+ * Compare the throughput and latency of the server with platform threads
+ * and with virtual threads, under title searches that block on the
+ * JPA DAO.  For each mode a server is started in its own JVM with the
+ * JPA DAO, seeded with contacts if the database has none, and then
+ * searched by many clients at once.  Each client waits for its response
+ * before sending the next request.
+ * <p>
+ * The DAO read pool has as many threads as there are clients, so the
+ * pool does not limit the blocking work in either mode.  Virtual threads
+ * need Java 21; on an older JVM both runs use platform threads, and the
+ * server log says so.
+ * <p>
+ * Run with: <tt>java test.contact.benchmark.ExecutionModeBenchmark [clients] [seconds] [contacts]</tt>
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class ExecutionModeBenchmark {
+	private static final String URL = "http://localhost:8080/contacts";
+	/** title prefix of the contacts made by this benchmark. */
+	private static final String TITLE = "bench-";
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int contacts = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		System.out.printf("%d clients, %d s per mode, %d contacts%n", clients, seconds, contacts);
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			Process server = startServer(mode, clients);
+			try {
+				seed(contacts);
+				run(mode, clients, seconds, contacts);
+			} finally {
+				server.getOutputStream().write('\n');
+				server.getOutputStream().flush();
+				server.waitFor();
+			}
+		}
+	}
+
+	/**
+	 * Start a server in a new JVM and wait until it answers.
+	 */
+	private static Process startServer(ExecutionMode mode, int clients) throws Exception {
+		File log = File.createTempFile("contact-" + mode.name().toLowerCase(), ".log");
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java,
+				"-cp", System.getProperty("java.class.path"),
+				"-D" + ExecutionMode.PROPERTY + "=" + mode.name().toLowerCase(),
+				"-D" + ContactResource.DAO_PROPERTY + "=jpa",
+				"-Dcontact.executor.read.threads=" + clients,
+				"-Dcontact.server.maxThreads=" + Math.max(200, 2 * clients),
+				"contact.JettyMain");
+		builder.redirectErrorStream(true).redirectOutput(log);
+		Process server = builder.start();
+		long deadline = System.currentTimeMillis() + 60000;
+		while (true) {
+			try {
+				get(URL + "?limit=1");
+				break;
+			} catch (IOException e) {
+				if (!server.isAlive() || System.currentTimeMillis() > deadline)
+					throw new IllegalStateException("Server did not start; see " + log);
+				Thread.sleep(200);
+			}
+		}
+		System.out.printf("%s server started, log in %s%n", mode, log);
+		return server;
+	}
+
+	/**
+	 * Import contacts titled bench-0, bench-1, ... unless the database has them.
+	 */
+	private static void seed(int contacts) throws IOException {
+		if (get(URL + "?title=" + TITLE + (contacts - 1) + "&limit=1").contains(TITLE)) return;
+		StringBuilder body = new StringBuilder();
+		for (int k = 0; k < contacts; k++) {
+			body.append("{\"title\":\"").append(TITLE).append(k)
+				.append("\",\"name\":\"Contact ").append(k)
+				.append("\",\"email\":\"contact").append(k).append("@bench.com\",\"phoneNumber\":\"08")
+				.append(k).append("\"}\n");
+		}
+		HttpURLConnection conn = (HttpURLConnection) new URL(URL + "/import").openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		conn.setRequestProperty("Content-Type", "application/x-ndjson");
+		try (OutputStream out = conn.getOutputStream()) {
+			out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+		}
+		if (conn.getResponseCode() != 200) throw new IOException("Import failed: " + conn.getResponseCode());
+		read(conn);
+	}
+
+	/**
+	 * Warm up for a few seconds, then have the clients search for
+	 * the time and print throughput and latency.
+	 */
+	private static void run(ExecutionMode mode, int clients, int seconds, int contacts) throws InterruptedException {
+		measure(clients, 3, contacts);
+		Result result = measure(clients, seconds, contacts);
+		long[] latencies = result.latencies;
+		Arrays.sort(latencies);
+		System.out.printf("%-8s %8.0f req/s   p50 %7.2f ms   p99 %7.2f ms   errors %d%n", mode,
+				result.completed.get() / (double) seconds,
+				percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6, result.errors.get());
+	}
+
+	/** Latencies of successful requests, in nanoseconds, and the numbers of successes and failures. */
+	private static class Result {
+		long[] latencies;
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	private static Result measure(int clients, int seconds, final int contacts) throws InterruptedException {
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final Result result = new Result();
+		final List<long[]> samples = new ArrayList<long[]>();
+		final int[] counts = new int[clients];
+		Thread[] threads = new Thread[clients];
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			final long[] times = new long[1 << 16];
+			samples.add(times);
+			threads[c] = new Thread(() -> {
+				int k = client;
+				while (System.nanoTime() < end) {
+					long start = System.nanoTime();
+					try {
+						get(URL + "?title=" + TITLE + (k % contacts) + "&limit=20");
+						result.completed.incrementAndGet();
+						if (counts[client] < times.length) times[counts[client]++] = System.nanoTime() - start;
+					} catch (IOException e) {
+						result.errors.incrementAndGet();
+					}
+					k += 7919;
+				}
+			});
+			threads[c].start();
+		}
+		int total = 0;
+		for (int c = 0; c < clients; c++) {
+			threads[c].join();
+			total += counts[c];
+		}
+		result.latencies = new long[total];
+		int n = 0;
+		for (int c = 0; c < clients; c++) {
+			System.arraycopy(samples.get(c), 0, result.latencies, n, counts[c]);
+			n += counts[c];
+		}
+		return result;
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		if (sorted.length == 0) return 0;
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * (long) p / 100))];
+	}
+
+	/** GET a URL and return the body; a status other than 200 is an IOException. */
+	private static String get(String url) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestProperty("Accept", "application/json");
+		if (conn.getResponseCode() != 200) {
+			read(conn);
+			throw new IOException(url + " gave " + conn.getResponseCode());
+		}
+		return read(conn);
+	}
+
+	private static String read(HttpURLConnection conn) throws IOException {
+		InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+		if (in == null) return "";
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		try {
+			for (int n; (n = in.read(buffer)) > 0; ) body.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
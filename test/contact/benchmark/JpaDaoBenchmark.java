@@ -0,0 +1,136 @@
+package test.contact.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import contact.entity.Contact;
+import contact.service.ContactDao;
+import contact.service.DaoFactory;
+import contact.service.jpa.ConnectionPoolMXBean;
+
+/**
+ * Measure how many finds and saves per second JpaContactDao does
+ * with 1, 2, 4, ... threads calling it at once.  Each level runs
+ * finds of random ids for the time, then saves of new contacts.
+ * Contacts saved by the benchmark are deleted afterwards.
+ * After each level the most connections of each connection pool in
+ * use at once is printed, to see whether the pools limit the DAO.
+ * <p>
+ * The pools and statement cache are set as for the server, for example
+ * <tt>-Dcontact.jpa.pool.max=8 -Dcontact.jpa.statementCache=0</tt>;
+ * see JpaDaoFactory.
+ * <p>
+ * Run with: <tt>java test.contact.benchmark.JpaDaoBenchmark [max threads] [seconds] [contacts]</tt>
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class JpaDaoBenchmark {
+	/** title of the contacts made by this benchmark. */
+	private static final String TITLE = "jpa-bench";
+
+	/** An operation under test. */
+	interface Case {
+		void run(Random random);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		final ContactDao dao = DaoFactory.getInstance().getContactDao();
+		final long[] ids = seed(dao, size);
+		final ConcurrentLinkedQueue<Contact> created = new ConcurrentLinkedQueue<Contact>();
+		Map<String,ConnectionPoolMXBean> pools = pools();
+
+		System.out.printf("%d contacts, %d s per case, %d cores%n", ids.length, seconds, Runtime.getRuntime().availableProcessors());
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			run("find", threads, seconds, pools, random -> dao.find(ids[random.nextInt(ids.length)]));
+			run("save", threads, seconds, pools, random -> {
+				Contact contact = new Contact(TITLE, "Saved", "saved@bench.com", "0800000000");
+				if (dao.save(contact)) created.add(contact);
+			});
+		}
+		for (Contact contact : created) dao.delete(contact.getId());
+		DaoFactory.getInstance().shutdown();
+	}
+
+	/**
+	 * Save contacts for finding, unless there are enough already.
+	 * @return ids of saved contacts
+	 */
+	private static long[] seed(ContactDao dao, int size) {
+		List<Contact> saved = dao.findByTitle(TITLE);
+		if (saved.size() < size) {
+			List<Contact> batch = new ArrayList<Contact>();
+			for (int k = saved.size(); k < size; k++)
+				batch.add(new Contact(TITLE, "Contact " + k, "contact" + k + "@bench.com", "08" + k));
+			dao.createAll(batch);
+			saved = dao.findByTitle(TITLE);
+		}
+		long[] ids = new long[saved.size()];
+		for (int k = 0; k < ids.length; k++) ids[k] = saved.get(k).getId();
+		return ids;
+	}
+
+	/** Get the connection pool statistics published with JMX, by name of pool. */
+	private static Map<String,ConnectionPoolMXBean> pools() throws Exception {
+		Map<String,ConnectionPoolMXBean> pools = new TreeMap<String,ConnectionPoolMXBean>();
+		for (ObjectName name : ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("contact:type=ConnectionPool,*"), null))
+			pools.put(ObjectName.unquote(name.getKeyProperty("name")),
+					JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, ConnectionPoolMXBean.class));
+		return pools;
+	}
+
+	/**
+	 * Warm up a case for a second, then run it on some threads for the time
+	 * and print operations per second and the most connections of each pool in use.
+	 */
+	private static void run(String name, int threads, int seconds, Map<String,ConnectionPoolMXBean> pools, Case test) throws InterruptedException {
+		List<ConnectionPoolMXBean> beans = new ArrayList<ConnectionPoolMXBean>(pools.values());
+		measure(threads, 1, beans, test, new int[beans.size()]);
+		int[] active = new int[beans.size()];
+		long count = measure(threads, seconds, beans, test, active);
+		StringBuilder usage = new StringBuilder();
+		int k = 0;
+		for (String pool : pools.keySet()) usage.append(String.format("   %s pool %2d active", pool, active[k++]));
+		System.out.printf("%-5s %3d threads %10.0f ops/s%s%n", name, threads, count / (double) seconds, usage);
+	}
+
+	/**
+	 * Run a case on threads for some time.
+	 * @param active set to the most active connections seen in each pool
+	 * @return number of operations done
+	 */
+	private static long measure(int threads, int seconds, final List<ConnectionPoolMXBean> pools, final Case test, int[] active) throws InterruptedException {
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong count = new AtomicLong();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			workers[t] = new Thread(() -> {
+				long n = 0;
+				while (System.nanoTime() < end) {
+					test.run(random);
+					n++;
+				}
+				count.addAndGet(n);
+			});
+			workers[t].start();
+		}
+		while (System.nanoTime() < end) {
+			for (int k = 0; k < pools.size(); k++) active[k] = Math.max(active[k], pools.get(k).getActiveConnections());
+			Thread.sleep(50);
+		}
+		for (Thread worker : workers) worker.join();
+		return count.get();
+	}
+}
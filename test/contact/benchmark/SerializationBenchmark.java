@@ -0,0 +1,113 @@
+package test.contact.benchmark;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.eclipse.persistence.jaxb.MarshallerProperties;
+
+import contact.entity.Contact;
+import contact.entity.ContactBinaryCodec;
+import contact.entity.ContactJsonWriter;
+import contact.entity.ContactList;
+
+/**
+ * Compare the cost of writing a list of contacts as XML with JAXB,
+ * as JSON with MOXy (the reflective JSON binding), as JSON with
+ * ContactJsonWriter, and in the binary form of ContactBinaryCodec.  Output goes to a stream that only counts bytes,
+ * so only serialization is measured.
+ * <p>
+ * Run with: <tt>java test.contact.benchmark.SerializationBenchmark [contacts] [seconds]</tt>
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class SerializationBenchmark {
+
+	/** A serializer under test. */
+	interface Case {
+		void write(List<Contact> contacts, OutputStream out) throws Exception;
+	}
+
+	/** Output stream that throws the bytes away and counts them. */
+	static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		List<Contact> contacts = makeContacts(size);
+
+		final JAXBContext xmlContext = JAXBContext.newInstance(ContactList.class);
+		Map<String,Object> properties = new HashMap<String,Object>();
+		properties.put(MarshallerProperties.MEDIA_TYPE, "application/json");
+		properties.put(MarshallerProperties.JSON_INCLUDE_ROOT, false);
+		final JAXBContext jsonContext = JAXBContextFactory.createContext(new Class<?>[] { ContactList.class }, properties);
+
+		System.out.printf("%d contacts, %d s per case%n", size, seconds);
+		run("JAXB XML", contacts, seconds, (list, out) -> marshal(xmlContext, list, out));
+		run("MOXy JSON", contacts, seconds, (list, out) -> marshal(jsonContext, list, out));
+		run("ContactJsonWriter", contacts, seconds, (list, out) -> ContactJsonWriter.writeList(list, out));
+		run("ContactBinaryCodec", contacts, seconds, (list, out) -> ContactBinaryCodec.writeList(list, out));
+	}
+
+	private static void marshal(JAXBContext context, List<Contact> contacts, OutputStream out) throws JAXBException {
+		ContactList list = new ContactList();
+		list.setContactList(contacts);
+		Marshaller marshaller = context.createMarshaller();
+		marshaller.marshal(list, out);
+	}
+
+	/**
+	 * Warm up a case for a second, then time it and print the results.
+	 */
+	private static void run(String name, List<Contact> contacts, int seconds, Case test) throws Exception {
+		CountingOutputStream out = new CountingOutputStream();
+		long warmupEnd = System.nanoTime() + 1000000000L;
+		while (System.nanoTime() < warmupEnd) test.write(contacts, out);
+
+		out.count = 0;
+		int ops = 0;
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		long now;
+		do {
+			test.write(contacts, out);
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+		double elapsed = (now - start) / 1e9;
+		System.out.printf("%-18s %10.3f ms/list %10.0f contacts/s %8.1f MB/s %8d bytes/list%n",
+				name, 1000 * elapsed / ops, ops * contacts.size() / elapsed,
+				out.count / elapsed / (1 << 20), out.count / ops);
+	}
+
+	private static List<Contact> makeContacts(int size) {
+		List<Contact> contacts = new ArrayList<Contact>(size);
+		for (int k = 0; k < size; k++) {
+			Contact contact = new Contact("Contact title " + k, "Joe Experimental " + k,
+					"joe" + k + "@testing.com", "08" + (10000000 + k));
+			contact.setId(1000 + k);
+			contact.setVersion(1 + k % 5);
+			contacts.add(contact);
+		}
+		return contacts;
+	}
+}
@@ -0,0 +1,150 @@
+package test.contact.benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import contact.entity.Contact;
+import contact.service.ContactDao;
+import contact.service.DaoFactory;
+
+/**
+ * Compare title searches of JpaContactDao, which use the trigram
+ * index, with the LIKE query that scans the contacts table.  The
+ * database is filled with contacts whose titles are random words, up
+ * to the number asked for (1 million by default), and then each kind
+ * of search is timed for a page of 20 contacts, the way the web
+ * service searches.  The query cache of the DAO is turned off, so every
+ * search goes to the database.
+ * <p>
+ * Filling the database the first time takes a while; later runs use
+ * the contacts that are there.
+ * <p>
+ * Run with: <tt>java test.contact.benchmark.TitleSearchBenchmark [contacts] [seconds]</tt>
+ *
+ * @author Natchanon Hongladaromp
+ */
+public class TitleSearchBenchmark {
+	/** URL of the database in persistence.xml. */
+	private static final String URL = "jdbc:derby:/tmp/contactdb";
+	private static final int PAGE = 20;
+	private static final int WORDS = 50000;
+	private static final int SEED_BATCH = 5000;
+
+	/** A search under test. */
+	interface Search {
+		int run(String term) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		System.setProperty("contact.jpa.queryCache.size", "0");
+		final ContactDao dao = DaoFactory.getInstance().getContactDao();
+		String[] words = words(new Random(1));
+		seed(dao, words, size);
+
+		try (Connection connection = DriverManager.getConnection(URL)) {
+			final PreparedStatement scan = connection.prepareStatement(
+					"SELECT * FROM contacts WHERE id > ? AND LOWER(title) LIKE ? ORDER BY id FETCH FIRST " + PAGE + " ROWS ONLY");
+			Search indexed = term -> dao.findByTitle(term, 0, PAGE).size();
+			Search scanned = term -> {
+				scan.setLong(1, 0);
+				scan.setString(2, "%" + term + "%");
+				int count = 0;
+				try (ResultSet rows = scan.executeQuery()) {
+					while (rows.next()) count++;
+				}
+				return count;
+			};
+			System.out.printf("%d contacts, %d s per case, page of %d%n", count(connection), seconds, PAGE);
+			// a word is in about 2.5 titles in WORDS; a prefix or part of a word is in more
+			Random random = new Random(2);
+			String[][] cases = new String[5][64];
+			for (int k = 0; k < 64; k++) {
+				String word = words[random.nextInt(words.length)];
+				cases[0][k] = word;
+				cases[1][k] = word.substring(0, 4);
+				cases[2][k] = word.substring(1, 4);
+				cases[3][k] = word + "qx";
+				cases[4][k] = word.substring(0, 2);
+			}
+			String[] names = { "word", "prefix (4)", "substring (3)", "no match", "short (2)" };
+			for (int c = 0; c < cases.length; c++) {
+				run(names[c], "index", cases[c], seconds, indexed);
+				run(names[c], "scan", cases[c], seconds, scanned);
+			}
+		}
+		DaoFactory.getInstance().shutdown();
+	}
+
+	/** Make random lowercase words of 5 to 9 letters. */
+	private static String[] words(Random random) {
+		String[] words = new String[WORDS];
+		for (int k = 0; k < words.length; k++) {
+			char[] word = new char[5 + random.nextInt(5)];
+			for (int j = 0; j < word.length; j++) word[j] = (char) ('a' + random.nextInt(26));
+			words[k] = new String(word);
+		}
+		return words;
+	}
+
+	/**
+	 * Save contacts with titles of 2 or 3 random words, until there are size of them.
+	 */
+	private static void seed(ContactDao dao, String[] words, int size) throws SQLException {
+		long count;
+		try (Connection connection = DriverManager.getConnection(URL)) {
+			count = count(connection);
+		}
+		Random random = new Random(count);
+		long start = System.nanoTime();
+		while (count < size) {
+			List<Contact> batch = new ArrayList<Contact>();
+			for (int k = 0; k < SEED_BATCH && count + k < size; k++) {
+				StringBuilder title = new StringBuilder(words[random.nextInt(words.length)]);
+				for (int w = 1 + random.nextInt(2); w > 0; w--) title.append(' ').append(words[random.nextInt(words.length)]);
+				batch.add(new Contact(title.toString(), "Contact", "contact@bench.com", "0800000000"));
+			}
+			dao.createAll(batch);
+			count += batch.size();
+			if (count % 100000 < SEED_BATCH)
+				System.out.printf("saved %d contacts in %.0f s%n", count, (System.nanoTime() - start) / 1e9);
+		}
+	}
+
+	private static long count(Connection connection) throws SQLException {
+		try (ResultSet result = connection.createStatement().executeQuery("SELECT COUNT(*) FROM contacts")) {
+			result.next();
+			return result.getLong(1);
+		}
+	}
+
+	/**
+	 * Warm up a search for a second, then run it over the terms for the time
+	 * and print searches per second and the mean time of a search.
+	 */
+	private static void run(String name, String how, String[] terms, int seconds, Search search) throws Exception {
+		measure(terms, 1, search);
+		long[] result = measure(terms, seconds, search);
+		System.out.printf("%-14s %-5s %8.1f searches/s %9.2f ms/search %5.1f contacts/search%n", name, how,
+				result[0] / (double) seconds, seconds * 1000.0 / result[0], result[1] / (double) result[0]);
+	}
+
+	/** @return number of searches and number of contacts found */
+	private static long[] measure(String[] terms, int seconds, Search search) throws Exception {
+		long end = System.nanoTime() + seconds * 1000000000L;
+		long searches = 0;
+		long found = 0;
+		do {
+			found += search.run(terms[(int) (searches % terms.length)]);
+			searches++;
+		} while (System.nanoTime() < end);
+		return new long[] { searches, found };
+	}
+}
@@ -0,0 +1,62 @@
+package test.contact.service;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.service.ChangeLog;
+import contact.service.ChangeLog.Change;
+
+/**
+ * Test the bounded log of changes used to resume the change feed.
+ * @author Natchanon Hongladaromp
+ *
+ */
+public class ChangeLogTest {
+
+	private ChangeLog log;
+
+	/**
+	 * Do before each test.
+	 */
+	@Before
+	public void setUp() {
+		log = new ChangeLog(3);
+	}
+
+	/**
+	 * Test changes are numbered in order and read back after a sequence number.
+	 */
+	@Test
+	public void testSince() {
+		assertEquals(0, log.since(0).size());
+		log.append(ChangeLog.Type.CREATED, 101, 1);
+		log.append(ChangeLog.Type.UPDATED, 101, 2);
+		List<Change> changes = log.since(0);
+		assertEquals(2, changes.size());
+		assertEquals(1, changes.get(0).getSequence());
+		assertEquals(ChangeLog.Type.UPDATED, changes.get(1).getType());
+		assertEquals(2, changes.get(1).getVersion());
+		assertEquals(1, log.since(1).size());
+		assertEquals(0, log.since(2).size());
+		assertNull(log.since(3));
+	}
+
+	/**
+	 * Test the oldest changes are dropped when the log is full.
+	 */
+	@Test
+	public void testDropOldest() {
+		for (int k = 1; k <= 5; k++) log.append(ChangeLog.Type.DELETED, k, 0);
+		assertEquals(5, log.getLastSequence());
+		assertNull(log.since(0));
+		assertNull(log.since(1));
+		List<Change> changes = log.since(2);
+		assertEquals(3, changes.size());
+		assertEquals(3, changes.get(0).getId());
+		assertEquals(5, changes.get(2).getId());
+	}
+}
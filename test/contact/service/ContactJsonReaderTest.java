@@ -0,0 +1,74 @@
+package test.contact.service;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.entity.ContactJsonReader;
+
+/**
+ * Test reading contacts from NDJSON.
+ * @author Natchanon Hongladaromp
+ *
+ */
+public class ContactJsonReaderTest {
+
+	private static ContactJsonReader reader(String text) throws IOException {
+		return new ContactJsonReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Test lines ending with CRLF and blank lines are read.
+	 */
+	@Test
+	public void testReadLines() throws IOException {
+		try (ContactJsonReader reader = reader("{\"id\":1,\"title\":\"one\"}\r\n\r\n{\"id\":2,\"extra\":[1,{\"a\":null}]}")) {
+			assertEquals("one", reader.next().getTitle());
+			assertEquals(2, reader.next().getId());
+			assertFalse(reader.hasNext());
+		}
+	}
+
+	/**
+	 * Test deep nesting is rejected instead of overflowing the stack.
+	 */
+	@Test
+	public void testDeepNesting() {
+		char[] open = new char[100000];
+		Arrays.fill(open, '[');
+		try {
+			ContactJsonReader.parse("{\"extra\":" + new String(open));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().startsWith("Nested deeper"));
+		}
+		Contact contact = ContactJsonReader.parse("{\"id\":3,\"extra\":[[[[]]]]}");
+		assertEquals(3, contact.getId());
+	}
+
+	/**
+	 * Test a line that is too long is skipped and the next line is still read.
+	 */
+	@Test
+	public void testLongLine() throws IOException {
+		char[] title = new char[ContactJsonReader.MAX_LINE_LENGTH];
+		Arrays.fill(title, 'x');
+		try (ContactJsonReader reader = reader("{\"title\":\"" + new String(title) + "\"}\n{\"id\":4}\n")) {
+			assertTrue(reader.hasNext());
+			try {
+				reader.next();
+				fail("Expected IllegalArgumentException");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage().startsWith("Line is longer"));
+			}
+			assertEquals(4, reader.next().getId());
+			assertFalse(reader.hasNext());
+		}
+	}
+}
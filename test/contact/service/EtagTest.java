@@ -170,7 +170,7 @@ public class EtagTest {
 		long id = 1000001;
 		Contact c = MemDaoFactory.getInstance().getContactDao().find(id);
 		Request request = client.newRequest(serviceUrl + "contacts/" + id);
-		request.header("If-None-Match", c.hashCode() + "");
+		request.header("If-None-Match", "\"" + c.getVersion() + "\"");
 		request.method(HttpMethod.GET);
 
 		ContentResponse response;
@@ -182,6 +182,34 @@ public class EtagTest {
 		}
 	}
 	
+	/**
+	 * Test list and search have a collection ETag that stays the same
+	 * until a contact changes.
+	 */
+	@Test
+	public void testCollectionNoneMatch() {
+		try {
+			ContentResponse response = client.GET(serviceUrl + "contacts?title=contact1");
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			String etag = response.getHeaders().get("ETag");
+			assertNotNull(etag);
+
+			Request request = client.newRequest(serviceUrl + "contacts?title=contact1");
+			request.header("If-None-Match", etag);
+			response = request.send();
+			assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+
+			MemDaoFactory.getInstance().getContactDao().delete(1000002);
+			request = client.newRequest(serviceUrl + "contacts");
+			request.header("If-None-Match", etag);
+			response = request.send();
+			assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+			assertNotEquals(etag, response.getHeaders().get("ETag"));
+		} catch (InterruptedException | TimeoutException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Test PUT with header "If-Match" that match.
 	 */
@@ -200,7 +228,7 @@ public class EtagTest {
 		
 		Request request = client.newRequest(serviceUrl + "contacts/" + id);
 		request.content(content, "application/xml");
-		request.header("If-Match", c.hashCode() + "");
+		request.header("If-Match", "\"" + c.getVersion() + "\"");
 		request.method(HttpMethod.PUT);
 
 		ContentResponse response;
@@ -240,6 +268,36 @@ public class EtagTest {
 		}
 	}
 	
+	/**
+	 * Test PUT with a weak ETag in "If-Match", which never matches.
+	 */
+	@Test
+	public void testPutWeakMatchFail() {
+		long id = 1000001;
+		String contentStr = "<contact>"
+				+ "<title>Test</title>"
+				+ "<name>Name Tester</name>"
+				+ "<email>tt@test.t</email>"
+				+ "<phoneNumber>123456789</phoneNumber>"
+				+ "</contact>";
+		StringContentProvider content = new StringContentProvider(contentStr);
+
+		Contact c = MemDaoFactory.getInstance().getContactDao().find(id);
+
+		Request request = client.newRequest(serviceUrl + "contacts/" + id);
+		request.content(content, "application/xml");
+		request.header("If-Match", "W/\"" + c.getVersion() + "\"");
+		request.method(HttpMethod.PUT);
+
+		ContentResponse response;
+		try {
+			response = request.send();
+			assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), response.getStatus());
+		} catch (InterruptedException | TimeoutException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Test DELETE with header "If-Match" that match.
 	 */
@@ -251,7 +309,7 @@ public class EtagTest {
 		ContentResponse response;
 		
 		Contact c = MemDaoFactory.getInstance().getContactDao().find(id);
-		request.header("If-Match", c.hashCode() + "");
+		request.header("If-Match", "\"" + c.getVersion() + "\"");
 		
 		try {
 			response = request.send();
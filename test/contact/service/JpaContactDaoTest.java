@@ -0,0 +1,245 @@
+package test.contact.service;
+
+import static org.junit.Assert.*;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpMethod;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import contact.JettyMain;
+import contact.entity.Contact;
+import contact.entity.Operation;
+import contact.resource.ContactResource;
+import contact.service.ContactDao;
+import contact.service.DaoFactory;
+import contact.service.Outcome;
+import contact.service.jpa.JpaDaoFactory;
+
+/**
+ * Test JpaContactDao on an in-memory Derby database, and the
+ * service using it.
+ * @author Natchanon Hongladaromp
+ *
+ */
+public class JpaContactDaoTest {
+
+	final static int PORT = 11415;
+	private static final String DATABASE = "jdbc:derby:memory:contacttest";
+
+	private static String serviceUrl;
+	private static ContactDao dao;
+
+	/**
+	 * Do before all test.
+	 */
+	@BeforeClass
+	public static void doFirst() {
+		System.setProperty("contact.jpa.url", DATABASE + ";create=true");
+		System.setProperty(ContactResource.DAO_PROPERTY, "jpa");
+		dao = DaoFactory.getInstance().getContactDao();
+		serviceUrl = JettyMain.startServer( PORT );
+	}
+
+	/**
+	 * Do after all test.
+	 */
+	@AfterClass
+	public static void doLast() {
+		// stopping the server also shuts down the factory
+		try {
+			JettyMain.stopServer();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		System.clearProperty(ContactResource.DAO_PROPERTY);
+		System.clearProperty("contact.jpa.url");
+		try {
+			DriverManager.getConnection(DATABASE + ";drop=true");
+		} catch (SQLException e) {
+			// Derby reports a dropped database as an exception
+		}
+	}
+
+	private static Contact contact(String title) {
+		return new Contact(title, "Joe Contact", "joe@microsoft.com", "088888888");
+	}
+
+	/**
+	 * Test conditional update and delete only change the expected version.
+	 */
+	@Test
+	public void testConditionalWrite() {
+		Contact contact = contact("conditional");
+		assertTrue(dao.save(contact));
+		long id = contact.getId();
+		long version = dao.find(id).getVersion();
+		Contact update = new Contact(dao.find(id));
+		update.setName("Joe Updated");
+		assertFalse(dao.update(update, version + 1));
+		assertEquals("Joe Contact", dao.find(id).getName());
+		assertTrue(dao.update(update, version));
+		assertEquals("Joe Updated", dao.find(id).getName());
+		assertEquals(version + 1, dao.find(id).getVersion());
+		assertFalse(dao.delete(id, version));
+		assertNotNull(dao.find(id));
+		assertTrue(dao.delete(id, version + 1));
+		assertNull(dao.find(id));
+	}
+
+	/**
+	 * Test PUT and DELETE with an If-Match of an old version are 412.
+	 */
+	@Test
+	public void testPreconditionFailed() throws Exception {
+		Contact contact = contact("precondition");
+		dao.save(contact);
+		long id = contact.getId();
+		String stale = "\"" + dao.find(id).getVersion() + "\"";
+		Contact update = new Contact(dao.find(id));
+		update.setName("Joe Updated");
+		assertTrue(dao.update(update));
+
+		HttpClient client = new HttpClient();
+		client.start();
+		try {
+			Request request = client.newRequest(serviceUrl + "contacts/" + id);
+			request.content(new StringContentProvider("<contact><title>Stale</title></contact>"), "application/xml");
+			request.header("If-Match", stale);
+			request.method(HttpMethod.PUT);
+			ContentResponse response = request.send();
+			assertEquals(412, response.getStatus());
+
+			request = client.newRequest(serviceUrl + "contacts/" + id);
+			request.header("If-Match", stale);
+			request.method(HttpMethod.DELETE);
+			response = request.send();
+			assertEquals(412, response.getStatus());
+		} finally {
+			client.stop();
+		}
+		assertEquals("precondition", dao.find(id).getTitle());
+		dao.delete(id);
+	}
+
+	/**
+	 * Test createAll saves the contacts whose id is free and refuses a taken id.
+	 */
+	@Test
+	public void testCreateAllTakenId() {
+		Contact first = contact("first");
+		dao.save(first);
+		Contact taken = contact("taken");
+		taken.setId(first.getId());
+		Contact fresh = contact("fresh");
+		boolean[] saved = dao.createAll(Arrays.asList(fresh, taken));
+		assertTrue(saved[0]);
+		assertFalse(saved[1]);
+		assertEquals("first", dao.find(first.getId()).getTitle());
+		assertEquals("fresh", dao.find(fresh.getId()).getTitle());
+
+		List<Operation> operations = new ArrayList<Operation>();
+		operations.add(new Operation(Operation.Method.POST, 0, taken));
+		assertEquals(Outcome.EXISTS, dao.batch(operations)[0]);
+		dao.delete(first.getId());
+		dao.delete(fresh.getId());
+	}
+
+	/**
+	 * Test searching titles through the trigram index, where % and _
+	 * in a term match only themselves.
+	 */
+	@Test
+	public void testFindByTitle() {
+		Contact percent = contact("Sale 100% off");
+		Contact digits = contact("Sale 1000 off");
+		Contact underscore = contact("snake_case");
+		Contact letter = contact("snakeXcase");
+		dao.createAll(Arrays.asList(percent, digits, underscore, letter));
+
+		assertEquals(ids(percent, digits), ids(dao.findByTitle("sale 100")));
+		assertEquals(ids(percent), ids(dao.findByTitle("0% o")));
+		assertEquals(ids(underscore), ids(dao.findByTitle("e_c")));
+		assertEquals(ids(underscore), ids(dao.findByTitle("SNAKE_")));
+		assertEquals(ids(underscore, letter), ids(dao.findByTitle("case")));
+		// too short for the trigram index
+		assertEquals(ids(percent), ids(dao.findByTitle("%")));
+		assertEquals(ids(underscore), ids(dao.findByTitle("_")));
+		for (Contact contact : Arrays.asList(percent, digits, underscore, letter)) dao.delete(contact.getId());
+		assertTrue(dao.findByTitle("snake").isEmpty());
+	}
+
+	/**
+	 * Test cached contacts and title searches see a write.
+	 */
+	@Test
+	public void testCacheAfterWrite() {
+		assertTrue(dao.findByTitle("zebra").isEmpty());
+		Contact contact = contact("zebra crossing");
+		dao.save(contact);
+		long id = contact.getId();
+		assertEquals(ids(contact), ids(dao.findByTitle("zebra")));
+		assertEquals("zebra crossing", dao.find(id).getTitle());
+
+		Contact update = new Contact(dao.find(id));
+		update.setTitle("yak crossing");
+		assertTrue(dao.update(update));
+		assertTrue(dao.findByTitle("zebra").isEmpty());
+		assertEquals(ids(contact), ids(dao.findByTitle("yak")));
+		assertEquals("yak crossing", dao.find(id).getTitle());
+
+		dao.delete(id);
+		assertTrue(dao.findByTitle("yak").isEmpty());
+		assertNull(dao.find(id));
+	}
+
+	/**
+	 * Test a restarted factory gives new contacts ids after those it gave
+	 * before, and keeps the contacts.
+	 */
+	@Test
+	public void testIdsAfterRestart() {
+		// the pools of these factories are not published in JMX, since those of the service are
+		JpaDaoFactory factory = new JpaDaoFactory();
+		Contact before = contact("before restart");
+		factory.getContactDao().save(before);
+		factory.shutdown();
+
+		factory = new JpaDaoFactory();
+		try {
+			Contact after = contact("after restart");
+			factory.getContactDao().save(after);
+			assertTrue(after.getId() > before.getId());
+			assertEquals("before restart", factory.getContactDao().find(before.getId()).getTitle());
+			// the factory in use has no contacts with those ids in its block either
+			Contact other = contact("other");
+			dao.save(other);
+			assertNotEquals(before.getId(), other.getId());
+			assertNotEquals(after.getId(), other.getId());
+			factory.getContactDao().delete(after.getId());
+		} finally {
+			factory.shutdown();
+		}
+		dao.delete(before.getId());
+	}
+
+	private static List<Long> ids(Contact... contacts) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Contact contact : contacts) ids.add(contact.getId());
+		return ids;
+	}
+
+	private static List<Long> ids(List<Contact> contacts) {
+		return ids(contacts.toArray(new Contact[contacts.size()]));
+	}
+}
@@ -0,0 +1,433 @@
+package test.contact.service;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import contact.entity.Contact;
+import contact.entity.ContactField;
+import contact.entity.Operation;
+import contact.service.BlockIdAllocator;
+import contact.service.ContactDao;
+import contact.service.ContactListener;
+import contact.service.Outcome;
+import contact.service.mem.MemContactDao;
+import contact.service.mem.MemDaoFactory;
+
+/**
+ * Test the in-memory DAO directly, without the web service.
+ * @author Natchanon Hongladaromp
+ *
+ */
+public class MemContactDaoTest {
+
+	private MemContactDao dao;
+
+	/**
+	 * Do before each test.
+	 */
+	@Before
+	public void setUp() {
+		dao = new MemContactDao();
+	}
+
+	/**
+	 * Test save, find and delete by id.
+	 */
+	@Test
+	public void testSaveFindDelete() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		contact.setId(1000001);
+		assertTrue(dao.save(contact));
+		assertEquals("Joe Contact", dao.find(1000001).getName());
+		assertTrue(dao.delete(1000001));
+		assertNull(dao.find(1000001));
+		assertFalse(dao.delete(1000001));
+	}
+
+	/**
+	 * Test update only changes the supplied fields.
+	 */
+	@Test
+	public void testUpdate() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		Contact update = new Contact(contact.getId());
+		update.setName("Joe Updated");
+		assertTrue(dao.update(update));
+		assertEquals("Joe Updated", dao.find(contact.getId()).getName());
+		assertEquals("joe@microsoft.com", dao.find(contact.getId()).getEmail());
+		assertFalse(dao.update(new Contact(999)));
+	}
+
+	/**
+	 * Test each save or update gives the contact a new version.
+	 */
+	@Test
+	public void testVersion() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		assertEquals(1, dao.find(contact.getId()).getVersion());
+		Contact update = new Contact(contact.getId());
+		update.setName("Joe Updated");
+		dao.update(update);
+		assertEquals(2, update.getVersion());
+		assertEquals(2, dao.find(contact.getId()).getVersion());
+		Contact replace = new Contact("contact1", "Joe Replaced", "joe@microsoft.com", "088888888");
+		replace.setId(contact.getId());
+		dao.save(replace);
+		assertEquals(3, dao.find(contact.getId()).getVersion());
+	}
+
+	/**
+	 * Test an update that changes no field keeps the version and is not reported.
+	 */
+	@Test
+	public void testUnchangedUpdate() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		long count = dao.getModificationCount();
+		Contact update = new Contact(contact.getId());
+		update.setName("Joe Contact");
+		assertTrue(dao.update(update));
+		assertEquals(1, update.getVersion());
+		assertEquals(1, dao.find(contact.getId()).getVersion());
+		assertEquals(count, dao.getModificationCount());
+	}
+
+	/**
+	 * Test createAll and batch that change nothing are not counted as a modification.
+	 */
+	@Test
+	public void testNothingChangedNotCounted() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		long count = dao.getModificationCount();
+		Contact taken = new Contact("contact2", "Jane Contact", "jane@microsoft.com", "088888889");
+		taken.setId(contact.getId());
+		assertFalse(dao.createAll(Collections.singletonList(taken))[0]);
+		assertEquals(count, dao.getModificationCount());
+
+		List<Operation> operations = new ArrayList<Operation>();
+		operations.add(new Operation(Operation.Method.DELETE, 999, null));
+		operations.add(new Operation(Operation.Method.PUT, contact.getId(),
+				new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888")));
+		Outcome[] outcomes = dao.batch(operations);
+		assertEquals(Outcome.NOT_FOUND, outcomes[0]);
+		assertEquals(Outcome.DONE, outcomes[1]);
+		assertEquals(count, dao.getModificationCount());
+
+		operations.add(new Operation(Operation.Method.DELETE, contact.getId(), null));
+		dao.batch(operations);
+		assertEquals(count + 1, dao.getModificationCount());
+	}
+
+	/**
+	 * Test conditional update and delete only change the expected version.
+	 */
+	@Test
+	public void testConditionalWrite() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		long id = contact.getId();
+		Contact update = new Contact(id);
+		update.setName("Joe Updated");
+		assertFalse(dao.update(update, 2));
+		assertEquals("Joe Contact", dao.find(id).getName());
+		assertTrue(dao.update(update, 1));
+		assertEquals("Joe Updated", dao.find(id).getName());
+		assertFalse(dao.delete(id, 1));
+		assertNotNull(dao.find(id));
+		assertTrue(dao.delete(id, 2));
+		assertNull(dao.find(id));
+		assertFalse(dao.update(update, ContactDao.ANY_VERSION));
+	}
+
+	/**
+	 * Test title search ignores case and follows updates and deletes.
+	 */
+	@Test
+	public void testFindByTitle() {
+		Contact contact1 = new Contact("Best Friend", "Joe Contact", "joe@microsoft.com", "088888888");
+		Contact contact2 = new Contact("Old friend", "Sally Contract", "sally@foo.com", "078984789");
+		Contact contact3 = new Contact("Boss", "Boss Contact", "boss@foo.com", "078984789");
+		dao.save(contact1);
+		dao.save(contact2);
+		dao.save(contact3);
+		assertEquals(2, dao.findByTitle("FRIEND").size());
+		assertEquals(2, dao.findByTitle("S").size());
+		assertEquals(0, dao.findByTitle("enemy").size());
+
+		Contact update = new Contact(contact2.getId());
+		update.setTitle("Old enemy");
+		dao.update(update);
+		assertEquals(1, dao.findByTitle("friend").size());
+		assertEquals(1, dao.findByTitle("enemy").size());
+
+		dao.delete(contact1.getId());
+		assertEquals(0, dao.findByTitle("friend").size());
+	}
+
+	/**
+	 * Test paging through all contacts and search results in order of id.
+	 */
+	@Test
+	public void testPaging() {
+		for (int k = 0; k < 25; k++) {
+			Contact contact = new Contact((k % 2 == 0 ? "Friend " : "Boss ") + k, "name", "email", "phone");
+			contact.setId(100 + k);
+			dao.save(contact);
+		}
+		List<Contact> page = dao.findAll(0, 10);
+		assertEquals(10, page.size());
+		assertEquals(100, page.get(0).getId());
+		page = dao.findAll(page.get(9).getId(), 10);
+		assertEquals(110, page.get(0).getId());
+		assertEquals(5, dao.findAll(119, 10).size());
+		assertEquals(0, dao.findAll(124, 10).size());
+
+		dao.delete(101);
+		page = dao.findAll(100, 1);
+		assertEquals(102, page.get(0).getId());
+
+		page = dao.findByTitle("friend", 0, 5);
+		assertEquals(5, page.size());
+		assertEquals(108, page.get(4).getId());
+		page = dao.findByTitle("friend", 108, 100);
+		assertEquals(8, page.size());
+		assertEquals(110, page.get(0).getId());
+		// too short for the trigram index
+		assertEquals(111, dao.findByTitle("s ", 110, 2).get(0).getId());
+	}
+
+	/**
+	 * Test a projection has only the requested fields and leaves the saved contact alone.
+	 */
+	@Test
+	public void testProjection() {
+		Contact contact = new Contact("Best Friend", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		Set<ContactField> fields = ContactField.parse("id,name,phoneNumber");
+		List<Contact> page = dao.findAll(0, 10, fields);
+		assertEquals(1, page.size());
+		Contact projected = page.get(0);
+		assertEquals(contact.getId(), projected.getId());
+		assertEquals(1, projected.getVersion());
+		assertEquals("Joe Contact", projected.getName());
+		assertEquals("088888888", projected.getPhoneNumber());
+		assertNull(projected.getTitle());
+		assertNull(projected.getEmail());
+		assertEquals("Best Friend", dao.find(contact.getId()).getTitle());
+		assertNull(dao.findByTitle("friend", 0, 10, fields).get(0).getTitle());
+		assertEquals(0, dao.findByTitle("enemy", 0, 10, fields).size());
+	}
+
+	/**
+	 * Test saving a batch skips ids that are already saved.
+	 */
+	@Test
+	public void testCreateAll() {
+		Contact old = new Contact("old", "Old Contact", "old@foo.com", "078984789");
+		old.setId(1000001);
+		dao.save(old);
+		List<Contact> batch = new ArrayList<Contact>();
+		batch.add(new Contact("new1", "New Contact", "new@foo.com", "078984789"));
+		Contact replace = new Contact("replace", "Replace Contact", "new@foo.com", "078984789");
+		replace.setId(1000001);
+		batch.add(replace);
+		batch.add(new Contact("new2", "New Contact", "new@foo.com", "078984789"));
+		boolean[] saved = dao.createAll(batch);
+		assertTrue(saved[0]);
+		assertFalse(saved[1]);
+		assertTrue(saved[2]);
+		assertEquals("old", dao.find(1000001).getTitle());
+		assertEquals(1, dao.find(batch.get(2).getId()).getVersion());
+		assertEquals(3, dao.findAll().size());
+	}
+
+	/**
+	 * Test a batch applies operations in order, each with its own outcome.
+	 */
+	@Test
+	public void testBatch() {
+		Contact contact = new Contact("contact1", "Joe Contact", "joe@microsoft.com", "088888888");
+		dao.save(contact);
+		long id = contact.getId();
+		List<Operation> operations = new ArrayList<Operation>();
+		operations.add(new Operation(Operation.Method.POST, 0, new Contact("new", "New Contact", "new@foo.com", "078984789")));
+		Contact update = new Contact(id);
+		update.setName("Joe Updated");
+		Operation put = new Operation(Operation.Method.PUT, id, update);
+		put.setIfMatch(1L);
+		operations.add(put);
+		Operation delete = new Operation(Operation.Method.DELETE, id, null);
+		delete.setIfMatch(1L);
+		operations.add(delete);
+		operations.add(new Operation(Operation.Method.DELETE, 999, null));
+		operations.add(new Operation(Operation.Method.PUT, id, null));
+
+		Outcome[] outcomes = dao.batch(operations);
+		assertArrayEquals(new Outcome[] { Outcome.DONE, Outcome.DONE, Outcome.VERSION_MISMATCH,
+				Outcome.NOT_FOUND, Outcome.INVALID }, outcomes);
+		assertEquals(2, update.getVersion());
+		assertEquals("Joe Updated", dao.find(id).getName());
+		assertEquals("new", dao.find(operations.get(0).getContact().getId()).getTitle());
+	}
+
+	/**
+	 * Test many threads saving new contacts get unique ids.
+	 */
+	@Test
+	public void testConcurrentSave() throws InterruptedException {
+		final int threads = 8;
+		final int perThread = 1000;
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				for (int k = 0; k < perThread; k++)
+					dao.save(new Contact("title" + k, "name", "email", "phone"));
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) worker.join();
+		assertEquals(threads * perThread, dao.findAll().size());
+	}
+
+	/**
+	 * Test new ids skip ids that clients chose, in the current block
+	 * and in later blocks.
+	 */
+	@Test
+	public void testClientIds() {
+		long first = BlockIdAllocator.FIRST_ID;
+		dao = new MemContactDao(new BlockIdAllocator(0, 10, new BlockIdAllocator.Counter()));
+		Contact contact = new Contact("new", "name", "email", "phone");
+		assertTrue(dao.save(contact));
+		assertEquals(first, contact.getId());
+		for (long id : new long[] { first + 3, first + 25 }) {
+			Contact chosen = new Contact("chosen", "name", "email", "phone");
+			chosen.setId(id);
+			assertTrue(dao.save(chosen));
+		}
+		List<Long> ids = new ArrayList<Long>();
+		for (int k = 0; k < 30; k++) {
+			contact = new Contact("new" + k, "name", "email", "phone");
+			assertTrue(dao.save(contact));
+			ids.add(contact.getId());
+		}
+		assertFalse(ids.contains(first + 3));
+		assertFalse(ids.contains(first + 25));
+		assertEquals(first + 4, (long) ids.get(0));
+		assertEquals("chosen", dao.find(first + 25).getTitle());
+	}
+
+	/**
+	 * Test a DAO with a node id makes ids of that node.
+	 */
+	@Test
+	public void testNodeIds() {
+		dao = new MemContactDao(new BlockIdAllocator(3, 10, new BlockIdAllocator.Counter()));
+		for (int k = 0; k < 25; k++) {
+			Contact contact = new Contact("title" + k, "name", "email", "phone");
+			assertTrue(dao.save(contact));
+			assertEquals(BlockIdAllocator.firstId(3) + k, contact.getId());
+		}
+	}
+
+	/**
+	 * Test a snapshot that can't be read stops loading with an exception,
+	 * so a server never starts empty and snapshots over it.
+	 */
+	@Test
+	public void testLoadCorruptSnapshot() throws IOException {
+		File file = File.createTempFile("contacts", ".xml");
+		try {
+			Files.write(file.toPath(), "<contacts><contact id=\"1\"><title>".getBytes(StandardCharsets.UTF_8));
+			try {
+				MemDaoFactory.load(dao, file);
+				fail("Loaded a corrupt snapshot");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test listeners hear of concurrent updates to one contact in the
+	 * order of their versions.
+	 */
+	@Test
+	public void testConcurrentUpdatesInOrder() throws InterruptedException {
+		Contact contact = new Contact("title", "name", "email", "phone");
+		assertTrue(dao.save(contact));
+		final long id = contact.getId();
+		final AtomicLong last = new AtomicLong(contact.getVersion());
+		final AtomicLong outOfOrder = new AtomicLong();
+		dao.addContactListener(new ContactListener() {
+			@Override
+			public void contactCreated(Contact created) {
+			}
+
+			@Override
+			public void contactUpdated(Contact updated) {
+				if (updated.getVersion() <= last.getAndSet(updated.getVersion())) outOfOrder.incrementAndGet();
+			}
+
+			@Override
+			public void contactDeleted(long deleted) {
+			}
+		});
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int k = 0; k < 5000; k++) {
+					Contact update = new Contact(null, "name" + k, null, null);
+					update.setId(id);
+					assertTrue(dao.update(update));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(0, outOfOrder.get());
+		assertEquals(dao.find(id).getVersion(), last.get());
+	}
+
+	/**
+	 * Test only one of many concurrent creates with the same id succeeds,
+	 * as POST /contacts relies on.
+	 */
+	@Test
+	public void testConcurrentCreateSameId() throws InterruptedException {
+		final AtomicLong created = new AtomicLong();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(() -> {
+				for (long id = 1; id <= 2000; id++) {
+					Contact contact = new Contact("title", "thread" + thread, "email", "phone");
+					contact.setId(id);
+					if (dao.createAll(Collections.singletonList(contact))[0]) created.incrementAndGet();
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(2000, created.get());
+		for (long id = 1; id <= 2000; id++) assertEquals(1, dao.find(id).getVersion());
+	}
+}